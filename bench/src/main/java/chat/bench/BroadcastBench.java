@@ -0,0 +1,60 @@
+package chat.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ChatRoom.broadcastAll fan-out to members whose transport is an in-memory
+ * queue. Each invocation also drains what the broadcast queued, as a
+ * connection's writer would, so the queues stay short and the measured path is
+ * sequence + ring + encode + enqueue + dequeue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBench {
+    @Param({ "1", "10", "100", "1000" })
+    public int members;
+
+    @Param({ "120" })
+    public int messageChars;
+
+    private Object room;
+    private Object[] handlers;
+    private String message;
+
+    private Path logDir;
+
+    @Setup
+    public void setup() throws Throwable {
+        logDir = Server.tempLogDir();
+        room = Server.NEW_ROOM.invoke(1, "bench", false);
+        handlers = new Object[members];
+        for (int i = 0; i < members; i++) {
+            handlers[i] = Server.handler();
+            Server.ADD_CLIENT.invoke(room, handlers[i]);
+        }
+        for (Object h : handlers)
+            while (Server.POLL_FRAME.invoke(h) != null)
+                ;
+        message = "alice: " + "é".repeat(messageChars / 10) + "x".repeat(messageChars - 7 - messageChars / 10);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Server.deleteTree(logDir);
+    }
+
+    @Benchmark
+    public void broadcastAll(Blackhole bh) throws Throwable {
+        Server.BROADCAST_ALL.invokeExact(room, (Object) message);
+        for (Object h : handlers)
+            bh.consume((Object) Server.POLL_FRAME.invokeExact(h));
+    }
+}
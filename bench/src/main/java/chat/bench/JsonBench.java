@@ -0,0 +1,150 @@
+package chat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The LLM JSON codec (JsonWriter, JsonReader) against the String-based one it
+ * replaced (LegacyJson). Covers:
+ * - escaping one chat line;
+ * - the request body for a 100-turn history, either with every message new
+ *   (cold) or already cached from earlier turns (warm);
+ * - reading the content of a full Ollama /api/chat reply;
+ * - reading a 100-line streamed reply.
+ *
+ * Run with {@code -prof gc} to see allocation per operation
+ * (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBench {
+    private static final int TURNS = 100;
+
+    private static final String CHAT_LINE = "alice: can you explain \"back-pressure\" in a chat server?\n"
+            + "I read that a slow client shouldn't stall the room\t(see the C10K notes) — is that right? \\o/";
+
+    private static final String REPLY = "Back-pressure is how a server stops a slow consumer from making "
+            + "everyone else slow.\n\nIn a chat room, each member gets their own **bounded outbound queue**:\n"
+            + "1. The room appends the message to every member's queue and returns immediately.\n"
+            + "2. A writer per connection drains its queue to the socket.\n"
+            + "3. When a queue is full you pick a policy: drop the oldest message, drop the newest, "
+            + "or disconnect the client.\n\nThat way \"alice\" on a bad link only hurts \"alice\". "
+            + "Café-grade Wi-Fi included ☕.";
+
+    private static final byte[] FULL_RESPONSE = ("{\"model\":\"llama3.2\",\"created_at\":\"2025-05-14T09:21:37.194822Z\","
+            + "\"message\":{\"role\":\"assistant\",\"content\":\"" + REPLY.replace("\"", "\\\"").replace("\n", "\\n")
+            + "\"},\"done_reason\":\"stop\",\"done\":true,\"total_duration\":4883583458,\"load_duration\":1334875,"
+            + "\"prompt_eval_count\":182,\"prompt_eval_duration\":107345000,\"eval_count\":164,"
+            + "\"eval_duration\":4289000000}\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] STREAM_RESPONSE = stream();
+
+    private Object writer;
+    private List<Object> history;
+    private List<String> legacyHistory;
+    private String[][] turns;
+
+    private static byte[] stream() {
+        StringBuilder sb = new StringBuilder();
+        String[] words = REPLY.replace("\"", "\\\"").replace("\n", "\\n").split(" ");
+        for (int i = 0; i < TURNS; i++)
+            sb.append("{\"model\":\"llama3.2\",\"created_at\":\"2025-05-14T09:21:37.2113").append(10 + i)
+                    .append("Z\",\"message\":{\"role\":\"assistant\",\"content\":\"").append(i == 0 ? "" : " ")
+                    .append(words[i % words.length]).append("\"},\"done\":false}\n");
+        sb.append("{\"model\":\"llama3.2\",\"created_at\":\"2025-05-14T09:21:39.0Z\",\"message\":{\"role\":\"assistant\","
+                + "\"content\":\"\"},\"done_reason\":\"stop\",\"done\":true,\"total_duration\":4883583458,\"eval_count\":100}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        writer = Server.NEW_WRITER.invoke(4096);
+        turns = new String[TURNS][];
+        history = new ArrayList<>(TURNS);
+        legacyHistory = new ArrayList<>(TURNS);
+        for (int i = 0; i < TURNS; i++) {
+            turns[i] = i % 2 == 0 ? new String[] { "user", CHAT_LINE + " #" + i } : new String[] { "assistant", REPLY };
+            Object m = Server.NEW_MESSAGE.invoke(turns[i][0], turns[i][1]);
+            Server.MESSAGE_JSON.invoke(m);
+            history.add(m);
+            legacyHistory.add(LegacyJson.messageJson(turns[i][0], turns[i][1]));
+        }
+    }
+
+    @Benchmark
+    public Object escapeLegacy() {
+        return LegacyJson.escapeJson(CHAT_LINE);
+    }
+
+    @Benchmark
+    public int escape() throws Throwable {
+        Object w = (Object) Server.WRITER_RESET.invokeExact(writer);
+        return (int) Server.WRITER_LENGTH.invokeExact((Object) Server.WRITER_STRING.invokeExact(w, (Object) CHAT_LINE));
+    }
+
+    @Benchmark
+    public Object payloadColdLegacy() {
+        List<String> msgs = new ArrayList<>(TURNS);
+        for (String[] t : turns)
+            msgs.add(LegacyJson.messageJson(t[0], t[1]));
+        return LegacyJson.payload("llama3.2", msgs, true);
+    }
+
+    @Benchmark
+    public int payloadCold() throws Throwable {
+        List<Object> msgs = new ArrayList<>(TURNS);
+        for (String[] t : turns)
+            msgs.add((Object) Server.NEW_MESSAGE.invokeExact((Object) t[0], (Object) t[1]));
+        return payload(msgs);
+    }
+
+    @Benchmark
+    public Object payloadWarmLegacy() {
+        return LegacyJson.payload("llama3.2", legacyHistory, true);
+    }
+
+    @Benchmark
+    public int payloadWarm() throws Throwable {
+        return payload(history);
+    }
+
+    private int payload(List<Object> msgs) throws Throwable {
+        Object w = (Object) Server.WRITER_RESET.invokeExact(writer);
+        w = (Object) Server.WRITE_CHAT_PAYLOAD.invokeExact(w, (Object) "llama3.2", (Object) msgs, true);
+        return (int) Server.WRITER_LENGTH.invokeExact(w);
+    }
+
+    @Benchmark
+    public Object readFullLegacy() {
+        return LegacyJson.content(FULL_RESPONSE);
+    }
+
+    @Benchmark
+    public Object readFull() throws Throwable {
+        Object r = (Object) Server.NEW_READER.invokeExact((Object) new ByteArrayInputStream(FULL_RESPONSE));
+        boolean ok = (boolean) Server.READER_NEXT.invokeExact(r);
+        return ok ? (Object) Server.READER_CONTENT.invokeExact(r) : null;
+    }
+
+    @Benchmark
+    public int readStreamLegacy() throws Exception {
+        return LegacyJson.streamContentChars(STREAM_RESPONSE);
+    }
+
+    @Benchmark
+    public int readStream() throws Throwable {
+        Object r = (Object) Server.NEW_READER.invokeExact((Object) new ByteArrayInputStream(STREAM_RESPONSE));
+        int chars = 0;
+        while ((boolean) Server.READER_NEXT.invokeExact(r))
+            chars += ((String) (Object) Server.READER_CONTENT.invokeExact(r)).length();
+        return chars;
+    }
+}
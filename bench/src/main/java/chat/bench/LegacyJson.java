@@ -0,0 +1,93 @@
+package chat.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The String-based codec LlmClient used before JsonWriter/JsonReader, kept
+ * only as the baseline for JsonBench. The steps mirror what the HttpClient
+ * body handlers did: ofString and ofLines decode the whole body first.
+ */
+final class LegacyJson {
+    private LegacyJson() {
+    }
+
+    static String escapeJson(String s) {
+        return s.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
+    }
+
+    static String messageJson(String role, String content) {
+        return "{\"role\":\"" + escapeJson(role) + "\",\"content\":\"" + escapeJson(content) + "\"}";
+    }
+
+    /** The request body as BodyPublishers.ofString would send it. */
+    static byte[] payload(String model, List<String> messageJson, boolean stream) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"model\":\"").append(escapeJson(model)).append("\",\"messages\":[");
+        for (int j = 0; j < messageJson.size(); j++) {
+            if (j > 0)
+                sb.append(',');
+            sb.append(messageJson.get(j));
+        }
+        return sb.append("],\"stream\":").append(stream).append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String content(byte[] body) {
+        return extractAndUnescapeContent(new String(body, StandardCharsets.UTF_8));
+    }
+
+    /** Content of every NDJSON line, as streamChat read them with BodyHandlers.ofLines. */
+    static int streamContentChars(byte[] body) throws IOException {
+        int chars = 0;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+            chars += extractAndUnescapeContent(line).length();
+            if (line.contains("\"done\":true"))
+                break;
+        }
+        return chars;
+    }
+
+    static String extractAndUnescapeContent(String body) {
+        int idx = body.indexOf("\"content\":");
+        if (idx < 0)
+            return null;
+        int i = body.indexOf('"', idx + 10) + 1;
+        StringBuilder sb = new StringBuilder();
+        while (i < body.length()) {
+            char c = body.charAt(i++);
+            if (c == '\\' && i < body.length()) {
+                char esc = body.charAt(i++);
+                switch (esc) {
+                    case 'u' -> {
+                        String hex = body.substring(i, i + 4);
+                        sb.append((char) Integer.parseInt(hex, 16));
+                        i += 4;
+                    }
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case '\\' -> sb.append('\\');
+                    case '"' -> sb.append('"');
+                    default -> sb.append(esc);
+                }
+            } else if (c == '"') {
+                break;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
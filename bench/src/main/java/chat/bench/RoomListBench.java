@@ -0,0 +1,67 @@
+package chat.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building a LIST reply: every room name (what a bare LIST sends), against
+ * one 100-room page from the start, from a cursor in the middle, and for a
+ * prefix, read off the sorted room index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomListBench {
+    @Param({ "1000", "5000" })
+    public int rooms;
+
+    private String[] names;
+
+    private Path logDir;
+
+    @Setup
+    public void setup() throws Throwable {
+        logDir = Server.tempLogDir();
+        names = new String[rooms];
+        for (int i = 0; i < rooms; i++) {
+            names[i] = "room-" + i;
+            Server.GET_OR_CREATE_ROOM.invoke(names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Server.deleteTree(logDir);
+    }
+
+    @Benchmark
+    public Object all() throws Throwable {
+        return new ArrayList<>((Set<?>) Server.ROOM_NAMES.invoke());
+    }
+
+    @Benchmark
+    public Object firstPage() throws Throwable {
+        return (Object) Server.LIST_ROOMS.invokeExact((Object) "", (Object) null, 100);
+    }
+
+    @Benchmark
+    public Object pageAfterCursor() throws Throwable {
+        return (Object) Server.LIST_ROOMS.invokeExact((Object) "",
+                (Object) names[ThreadLocalRandom.current().nextInt(rooms)], 100);
+    }
+
+    @Benchmark
+    public Object prefixPage() throws Throwable {
+        // "room-1234" matches that room and its ten-times multiples
+        return (Object) Server.LIST_ROOMS.invokeExact((Object) names[ThreadLocalRandom.current().nextInt(rooms)],
+                (Object) null, 100);
+    }
+}
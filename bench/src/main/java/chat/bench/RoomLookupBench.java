@@ -0,0 +1,48 @@
+package chat.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ChatServer.getOrCreateRoom for rooms that already exist (every JOIN), from
+ * four threads at once. With one room every thread hits the same key; with
+ * many they spread over the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RoomLookupBench {
+    @Param({ "1", "1024" })
+    public int rooms;
+
+    private String[] names;
+
+    private Path logDir;
+
+    @Setup
+    public void setup() throws Throwable {
+        logDir = Server.tempLogDir();
+        names = new String[rooms];
+        for (int i = 0; i < rooms; i++) {
+            names[i] = "room-" + i;
+            Server.GET_OR_CREATE_ROOM.invoke(names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Server.deleteTree(logDir);
+    }
+
+    @Benchmark
+    public Object getOrCreateRoom() throws Throwable {
+        return (Object) Server.GET_OR_CREATE_ROOM.invokeExact((Object) names[ThreadLocalRandom.current().nextInt(rooms)]);
+    }
+}
@@ -0,0 +1,146 @@
+package chat.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Handles to the server classes. They live in the default package, which
+ * JMH benchmarks cannot use and named packages cannot import, so they are
+ * reached through method handles. Every handle is static final and typed with
+ * Object, so the JIT inlines the calls.
+ */
+final class Server {
+    static final Class<?> CHAT_ROOM = type("ChatRoom");
+    static final Class<?> CLIENT_HANDLER = type("ClientHandler");
+    static final Class<?> SESSION_REGISTRY = type("SessionRegistry");
+    static final Class<?> SESSION = type("Session");
+    static final Class<?> TRANSPORT = type("ClientHandler$Transport");
+
+    static final MethodHandle NEW_ROOM = constructor(CHAT_ROOM, int.class, String.class, boolean.class);
+    static final MethodHandle ADD_CLIENT = virtual(CHAT_ROOM, "addClient", void.class, CLIENT_HANDLER);
+    static final MethodHandle BROADCAST_ALL = virtual(CHAT_ROOM, "broadcastAll", void.class, String.class);
+
+    static final MethodHandle NEW_HANDLER = constructor(CLIENT_HANDLER, TRANSPORT);
+    static final MethodHandle POLL_FRAME = virtual(CLIENT_HANDLER, "pollFrame", ByteBuffer.class);
+
+    static final MethodHandle NEW_REGISTRY = constructor(SESSION_REGISTRY);
+    static final MethodHandle CREATE_SESSION = virtual(SESSION_REGISTRY, "create", SESSION, String.class, CLIENT_HANDLER);
+    static final MethodHandle GET_SESSION = virtual(SESSION_REGISTRY, "get", SESSION, String.class);
+    static final MethodHandle IS_LOGGED_IN = virtual(SESSION_REGISTRY, "isLoggedIn", boolean.class, String.class);
+    static final MethodHandle SESSION_TOKEN = getter(SESSION, "token", String.class);
+
+    static final MethodHandle GET_OR_CREATE_ROOM = statik(type("ChatServer"), "getOrCreateRoom", CHAT_ROOM, String.class);
+    static final MethodHandle ROOM_NAMES = statik(type("ChatServer"), "getRoomNames", Set.class);
+    static final MethodHandle LIST_ROOMS = statik(type("ChatServer"), "listRooms", List.class, String.class,
+            String.class, int.class);
+    static final Class<?> MESSAGE = type("Message");
+    static final Class<?> JSON_WRITER = type("JsonWriter");
+    static final Class<?> JSON_READER = type("JsonReader");
+    static final MethodHandle NEW_MESSAGE = constructor(MESSAGE, String.class, String.class);
+    static final MethodHandle MESSAGE_JSON = virtual(MESSAGE, "json", byte[].class);
+    static final MethodHandle NEW_WRITER = constructor(JSON_WRITER, int.class);
+    static final MethodHandle WRITER_RESET = virtual(JSON_WRITER, "reset", JSON_WRITER);
+    static final MethodHandle WRITER_STRING = virtual(JSON_WRITER, "string", JSON_WRITER, CharSequence.class);
+    static final MethodHandle WRITER_LENGTH = virtual(JSON_WRITER, "length", int.class);
+    static final MethodHandle WRITE_CHAT_PAYLOAD = statik(type("LlmClient"), "writeChatPayload", JSON_WRITER,
+            JSON_WRITER, String.class, List.class, boolean.class);
+    static final MethodHandle NEW_READER = constructor(JSON_READER, InputStream.class);
+    static final MethodHandle READER_NEXT = virtual(JSON_READER, "next", boolean.class);
+    static final MethodHandle READER_CONTENT = virtual(JSON_READER, "content", String.class);
+
+    private Server() {
+    }
+
+    /** A handler with no socket behind it: frames stay queued until polled. */
+    static Object handler() throws Throwable {
+        Object transport = Proxy.newProxyInstance(TRANSPORT.getClassLoader(), new Class<?>[] { TRANSPORT },
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "bench-transport";
+                    default -> null; // framesQueued, close
+                });
+        return NEW_HANDLER.invoke(transport);
+    }
+
+    /** Points room logs at a fresh temporary directory; must run before the first room is created. */
+    static Path tempLogDir() throws IOException {
+        Path dir = Files.createTempDirectory("bench-rooms");
+        System.setProperty("chat.log.dir", dir.toString());
+        return dir;
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator)
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> c) throws IllegalAccessException {
+        // some targets are package-private; everything here shares the unnamed module
+        return MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+    }
+
+    /** Widens every reference type in the signature to Object so call sites can use invokeExact. */
+    private static MethodHandle erase(MethodHandle h) {
+        MethodType t = h.type();
+        for (int i = 0; i < t.parameterCount(); i++)
+            if (!t.parameterType(i).isPrimitive())
+                t = t.changeParameterType(i, Object.class);
+        if (!t.returnType().isPrimitive())
+            t = t.changeReturnType(Object.class);
+        return h.asType(t);
+    }
+
+    private static MethodHandle constructor(Class<?> c, Class<?>... params) {
+        try {
+            return erase(lookup(c).findConstructor(c, MethodType.methodType(void.class, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> c, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return erase(lookup(c).findVirtual(c, name, MethodType.methodType(ret, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle statik(Class<?> c, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return erase(lookup(c).findStatic(c, name, MethodType.methodType(ret, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> c, String name, Class<?> type) {
+        try {
+            return erase(lookup(c).findGetter(c, name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package chat.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SessionRegistry lookups on the AUTH/TOKEN path (token lookup, a miss, and
+ * isLoggedIn) against the number of live sessions, from four threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SessionLookupBench {
+    @Param({ "1000", "100000", "1000000" })
+    public int sessions;
+
+    private Object registry;
+    private String[] tokens;
+    private String[] users;
+
+    @Setup
+    public void setup() throws Throwable {
+        registry = Server.NEW_REGISTRY.invoke();
+        tokens = new String[sessions];
+        users = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            users[i] = "user" + i;
+            Object s = Server.CREATE_SESSION.invoke(registry, users[i], null);
+            tokens[i] = (String) Server.SESSION_TOKEN.invoke(s);
+        }
+    }
+
+    @Benchmark
+    public Object getByToken() throws Throwable {
+        return (Object) Server.GET_SESSION.invokeExact(registry, (Object) tokens[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+
+    @Benchmark
+    public Object getUnknownToken() throws Throwable {
+        return (Object) Server.GET_SESSION.invokeExact(registry, (Object) "00000000-0000-0000-0000-000000000000");
+    }
+
+    @Benchmark
+    public boolean isLoggedIn() throws Throwable {
+        return (boolean) Server.IS_LOGGED_IN.invokeExact(registry, (Object) users[ThreadLocalRandom.current().nextInt(sessions)]);
+    }
+}
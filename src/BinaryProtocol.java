@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Optional binary framing, negotiated by a client sending the line "BINARY"
+ * before authenticating; the server answers "BINARY_OK" and from then on both
+ * sides exchange frames:
+ *
+ * <pre>
+ *   int  length   (of everything below)
+ *   byte opcode
+ *   int  roomId   (0 when not about a room)
+ *   long seq      (room sequence number, or lastSeq for TOKEN; 0 otherwise)
+ *   ...  payload  (UTF-8 text, or user '\0' password for AUTH/REGISTER)
+ * </pre>
+ *
+ * The client must wait for BINARY_OK before sending its first frame.
+ */
+public final class BinaryProtocol {
+    // client -> server
+    public static final byte AUTH = 1;
+    public static final byte REGISTER = 2;
+    public static final byte TOKEN = 3;
+    public static final byte LIST = 4; // all rooms, or one page: prefix '\0' cursor, at most seq rooms
+    public static final byte JOIN = 5; // by room id, or by name in the payload
+    public static final byte SAY = 6;
+    public static final byte EXIT = 7;
+    public static final byte LOGOUT = 8;
+    public static final byte STATS = 9; // admins only; answered with STATUS lines ending in an empty one
+    public static final byte COMMAND = 10; // a text "/" command without its slash, e.g. "CACHE ON"
+
+    // server -> client
+    public static final byte STATUS = 16; // any reply the text protocol sends as a plain line
+    public static final byte MSG = 17; // sequenced room message
+    public static final byte HISTORY = 18; // logged message replayed on join
+    public static final byte ROOM = 19; // one LIST entry: room id + name
+    public static final byte LIST_END = 20; // after a LIST page, the payload is the cursor for the next one
+    public static final byte ROOM_INFO = 21; // one LIST page entry: room id + "<members> <AI|-> <name>"
+
+    public static final int HEADER = 1 + 4 + 8;
+
+    private BinaryProtocol() {
+    }
+
+    public interface Sink {
+        /**
+         * One decoded frame. {@code payload} is only valid during the call.
+         * Returns false to stop decoding (the connection is closing).
+         */
+        boolean onFrame(byte op, int roomId, long seq, ByteBuffer payload);
+    }
+
+    public static ByteBuffer encode(byte op, int roomId, long seq, byte[] payload, int off, int len) {
+        ByteBuffer b = ByteBuffer.allocate(4 + HEADER + len);
+        b.putInt(HEADER + len).put(op).putInt(roomId).putLong(seq).put(payload, off, len);
+        return b.flip().asReadOnlyBuffer();
+    }
+
+    public static ByteBuffer encode(byte op, int roomId, long seq, byte[] payload) {
+        return encode(op, roomId, seq, payload, 0, payload.length);
+    }
+
+    public static ByteBuffer encode(byte op, int roomId, long seq, String payload) {
+        return encode(op, roomId, seq, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Incremental frame decoder; only bytes of an incomplete frame are retained between reads. */
+    public static final class Decoder {
+        private final int maxFrame;
+        private byte[] partial;
+        private int len;
+
+        public Decoder(int maxFrame) {
+            this.maxFrame = maxFrame;
+        }
+
+        /** Consumes all of {@code src}; returns false if the sink asked to stop. */
+        public boolean feed(ByteBuffer src, Sink sink) throws IOException {
+            while (src.hasRemaining()) {
+                if (len == 0 && src.remaining() >= 4) {
+                    // fast path: the whole frame is in src, hand out a view of it
+                    int n = frameLength(src.getInt(src.position()));
+                    if (src.remaining() >= 4 + n) {
+                        int p = src.position() + 4;
+                        src.position(p + n);
+                        if (!deliver(src, p, n, sink))
+                            return false;
+                        continue;
+                    }
+                }
+                int need = len < 4 ? 4 - len : 4 + frameLength(ByteBuffer.wrap(partial).getInt(0)) - len;
+                int take = Math.min(need, src.remaining());
+                append(src, take);
+                if (len >= 4 && len == 4 + frameLength(ByteBuffer.wrap(partial).getInt(0))) {
+                    ByteBuffer whole = ByteBuffer.wrap(partial, 0, len);
+                    len = 0;
+                    boolean more = deliver(whole, 4, whole.limit() - 4, sink);
+                    if (partial.length > 4096)
+                        partial = null; // don't pin a large buffer on an idle connection
+                    if (!more)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        private int frameLength(int n) throws IOException {
+            if (n < HEADER || n > maxFrame)
+                throw new IOException("Bad frame length " + n);
+            return n;
+        }
+
+        private static boolean deliver(ByteBuffer b, int p, int n, Sink sink) {
+            byte op = b.get(p);
+            int roomId = b.getInt(p + 1);
+            long seq = b.getLong(p + 5);
+            return sink.onFrame(op, roomId, seq, b.slice(p + HEADER, n - HEADER));
+        }
+
+        private void append(ByteBuffer src, int n) {
+            if (partial == null)
+                partial = new byte[Math.max(256, n)];
+            else if (len + n > partial.length)
+                partial = Arrays.copyOf(partial, Math.max(len + n, partial.length * 2));
+            src.get(partial, len, n);
+            len += n;
+        }
+    }
+
+    /** Decodes a UTF-8 payload (or part of it) without consuming the buffer. */
+    public static String text(ByteBuffer payload, int from, int to) {
+        byte[] b = new byte[to - from];
+        payload.get(payload.position() + from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public static String text(ByteBuffer payload) {
+        return text(payload, 0, payload.remaining());
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One sequenced room message. Each wire encoding is built the first time a
+ * recipient needs it and then shared, read-only, by every other recipient
+ * using the same protocol.
+ */
+public final class Broadcast {
+    final int roomId;
+    final long seq;
+    final byte[] body; // UTF-8 text, no terminator
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer plain;
+    private volatile ByteBuffer binary;
+
+    Broadcast(int roomId, long seq, byte[] body) {
+        this.roomId = roomId;
+        this.seq = seq;
+        this.body = body;
+    }
+
+    /** "MSG <seq> <body>\n", for text clients that negotiated SEQ */
+    public ByteBuffer textFrame() {
+        ByteBuffer f = text;
+        if (f == null) {
+            // racing builders produce identical bytes; either copy may win
+            byte[] prefix = ("MSG " + seq + " ").getBytes(StandardCharsets.US_ASCII);
+            byte[] b = new byte[prefix.length + body.length + 1];
+            System.arraycopy(prefix, 0, b, 0, prefix.length);
+            System.arraycopy(body, 0, b, prefix.length, body.length);
+            b[b.length - 1] = '\n';
+            text = f = ByteBuffer.wrap(b).asReadOnlyBuffer();
+        }
+        return f;
+    }
+
+    /** "<body>\n", for text clients that did not negotiate SEQ */
+    public ByteBuffer plainFrame() {
+        ByteBuffer f = plain;
+        if (f == null) {
+            byte[] b = Arrays.copyOf(body, body.length + 1);
+            b[body.length] = '\n';
+            plain = f = ByteBuffer.wrap(b).asReadOnlyBuffer();
+        }
+        return f;
+    }
+
+    public ByteBuffer binaryFrame() {
+        ByteBuffer f = binary;
+        if (f == null)
+            binary = f = BinaryProtocol.encode(BinaryProtocol.MSG, roomId, seq, body);
+        return f;
+    }
+}
@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized direct buffers, so idle connections hold no network
+ * buffers and busy ones don't churn direct memory.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b != null) {
+            pooled.decrementAndGet();
+            b.clear();
+            return b;
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer b) {
+        if (pooled.incrementAndGet() <= maxPooled)
+            free.offer(b);
+        else
+            pooled.decrementAndGet();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public int getPooledCount() {
+        return pooled.get();
+    }
+}
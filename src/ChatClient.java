@@ -1,7 +1,9 @@
 import java.awt.*;
 import javax.swing.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileLock;
 import java.security.KeyStore;
 import java.util.Optional;
@@ -21,8 +23,14 @@ public class ChatClient {
     private volatile SSLSocket socket;
     private volatile BufferedReader serverReader;
     private volatile PrintWriter serverWriter;
+    // set when the server accepted binary framing; the text reader/writer are then unused
+    private volatile boolean binary;
+    private volatile DataInputStream frameIn;
+    private volatile DataOutputStream frameOut;
     private volatile String token;
     private volatile String currentRoomName;
+    private volatile long lastSeq; // last room message sequence received
+    private long lastSeqSavedAt;
 
     private final File sessionFile = new File("session.dat");
 
@@ -36,13 +44,41 @@ public class ChatClient {
     private JLabel loginStatus;
 
     // Rooms UI
-    private DefaultListModel<String> roomListModel;
-    private JList<String> roomList;
+    private static final int ROOM_PAGE = 100;
+    private DefaultListModel<RoomEntry> roomListModel;
+    private JList<RoomEntry> roomList;
+    private JScrollPane roomScroll;
+    private JTextField roomSearch;
+    // room paging, EDT only
+    private String listPrefix = "";
+    private String listCursor; // next page to ask for; null when the list is complete
+    private int listInFlight; // LIST pages requested on this connection and not yet ended
+    private int listStale; // of those, how many belong to a list since cleared
+
+    private record RoomEntry(String name, int members, boolean ai) {
+        /** Parses "<members> <AI|-> <name>"; null if malformed. */
+        static RoomEntry parse(String s) {
+            String[] f = s.split(" ", 3);
+            if (f.length < 3)
+                return null;
+            try {
+                return new RoomEntry(f[2], Integer.parseInt(f[0]), "AI".equals(f[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (ai ? "🤖 " : "") + name + "  (" + members + (members == 1 ? " member)" : " members)");
+        }
+    }
 
     // Chat UI
     private JTextArea messageArea;
     private JTextField inputField;
     private Thread listenerThread;
+    private boolean botStreaming; // EDT only: a streamed bot reply is mid-line
 
     public ChatClient(String hostname, int port) {
         this.hostname = hostname;
@@ -127,9 +163,18 @@ public class ChatClient {
         JPanel p = new JPanel(new BorderLayout(10, 10));
         roomListModel = new DefaultListModel<>();
         roomList = new JList<>(roomListModel);
-        JScrollPane scroll = new JScrollPane(roomList);
-        scroll.setBorder(BorderFactory.createTitledBorder("Available rooms"));
-        p.add(scroll, BorderLayout.CENTER);
+        roomScroll = new JScrollPane(roomList);
+        roomScroll.setBorder(BorderFactory.createTitledBorder("Available rooms"));
+        // fetch the next page as the user scrolls near the end
+        roomScroll.getVerticalScrollBar().addAdjustmentListener(e -> loadMoreRooms());
+        p.add(roomScroll, BorderLayout.CENTER);
+
+        JPanel search = new JPanel(new BorderLayout(5, 5));
+        search.add(new JLabel("Rooms starting with:"), BorderLayout.WEST);
+        roomSearch = new JTextField();
+        roomSearch.addActionListener(e -> fetchRooms());
+        search.add(roomSearch, BorderLayout.CENTER);
+        p.add(search, BorderLayout.NORTH);
 
         JPanel btns = new JPanel();
         JButton join = new JButton("Join Room");
@@ -195,13 +240,13 @@ public class ChatClient {
         new Thread(() -> {
             try {
                 openSocket();
-                serverReader.readLine(); // welcome
-                serverReader.readLine(); // prompt
-
-                serverWriter.println(cmd + " " + u + " " + p);
-                String resp = serverReader.readLine();
+                if (binary)
+                    writeFrame("AUTH".equals(cmd) ? BinaryProtocol.AUTH : BinaryProtocol.REGISTER, 0, u + "\0" + p);
+                else
+                    serverWriter.println(cmd + " " + u + " " + p);
+                String resp = readServerLine();
                 if ("AUTH_OK".equals(resp)) {
-                    String tokLine = serverReader.readLine(); // "TOKEN xxx"
+                    String tokLine = readServerLine(); // "TOKEN xxx"
                     token = tokLine.substring("TOKEN ".length()).trim();
                     saveSession();
                     SwingUtilities.invokeLater(() -> {
@@ -225,6 +270,7 @@ public class ChatClient {
             String tokLine = r.readLine();
             String roomLine = r.readLine();
             String pidLine = r.readLine();
+            String seqLine = r.readLine();
 
             if (tokLine == null)
                 return;
@@ -256,6 +302,12 @@ public class ChatClient {
                 currentRoomName = (roomLine != null && !roomLine.isBlank())
                         ? roomLine.trim()
                         : null;
+                if (seqLine != null && !seqLine.isBlank()) {
+                    try {
+                        lastSeq = Long.parseLong(seqLine.trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
                 saveSession();
             }
         } catch (IOException e) {
@@ -268,28 +320,141 @@ public class ChatClient {
             w.println(token != null ? token : "");
             w.println(currentRoomName != null ? currentRoomName : "");
             w.println(ProcessHandle.current().pid());
+            w.println(lastSeq);
         } catch (IOException ignored) {
         }
     }
 
     // ----- NETWORK & RECONNECT -----
 
-    private void openSocket() throws Exception {
-        char[] pass = "changeit".toCharArray();
-        KeyStore ts = KeyStore.getInstance("JKS");
-        try (FileInputStream fis = new FileInputStream("certs/clienttruststore.jks")) {
-            ts.load(fis, pass);
+    private static final boolean USE_BINARY = Boolean.parseBoolean(System.getProperty("chat.client.binary", "true"));
+    private static SSLContext sslContext;
+    private static int handshakes;
+    private static int resumedHandshakes;
+
+    // built once: reusing the context is what lets reconnects resume the TLS session
+    private static synchronized SSLContext getSSLContext() throws Exception {
+        if (sslContext == null) {
+            char[] pass = "changeit".toCharArray();
+            KeyStore ts = KeyStore.getInstance("JKS");
+            try (FileInputStream fis = new FileInputStream("certs/clienttruststore.jks")) {
+                ts.load(fis, pass);
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            tmf.init(ts);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, tmf.getTrustManagers(), null);
+            sslContext = ctx;
         }
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-        tmf.init(ts);
-        SSLContext ctx = SSLContext.getInstance("TLS");
-        ctx.init(null, tmf.getTrustManagers(), null);
-        SSLSocketFactory sf = ctx.getSocketFactory();
+        return sslContext;
+    }
+
+    private void openSocket() throws Exception {
+        SSLSocketFactory sf = getSSLContext().getSocketFactory();
         socket = (SSLSocket) sf.createSocket(hostname, port);
         socket.setEnabledProtocols(new String[] { "TLSv1.2", "TLSv1.3" });
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         socket.startHandshake();
-        serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        serverWriter = new PrintWriter(socket.getOutputStream(), true);
+        recordHandshake(socket.getSession(), startMillis, startNanos);
+        serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        serverWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        serverReader.readLine(); // welcome
+        serverReader.readLine(); // prompt
+        SwingUtilities.invokeLater(() -> {
+            // pages requested on the old connection will never end
+            listInFlight = 0;
+            listStale = 0;
+        });
+        binary = false;
+        if (USE_BINARY) {
+            serverWriter.println("BINARY");
+            String r = serverReader.readLine();
+            if ("BINARY_OK".equals(r)) {
+                // the server sends nothing more until our first frame, so the reader holds no frame bytes
+                frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                binary = true;
+            } else {
+                serverReader.readLine(); // an older server re-sends the prompt
+            }
+        }
+        if (!binary) {
+            // room messages as "MSG <seq> <text>", so a reconnect can ask for what it missed
+            serverWriter.println("SEQ");
+            if (!"SEQ_OK".equals(serverReader.readLine()))
+                serverReader.readLine(); // an older server re-sends the prompt
+        }
+    }
+
+    /**
+     * Next server message as the text protocol would have sent it, whichever
+     * protocol is in use; null at end of stream.
+     */
+    private String readServerLine() throws IOException {
+        if (!binary)
+            return serverReader.readLine();
+        DataInputStream in = frameIn;
+        int n;
+        try {
+            n = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (n < BinaryProtocol.HEADER)
+            throw new IOException("Bad frame length " + n);
+        byte op = in.readByte();
+        in.readInt(); // room id
+        long seq = in.readLong();
+        byte[] payload = new byte[n - BinaryProtocol.HEADER];
+        in.readFully(payload);
+        String text = new String(payload, StandardCharsets.UTF_8);
+        return switch (op) {
+            case BinaryProtocol.MSG -> "MSG " + seq + " " + text;
+            case BinaryProtocol.LIST_END -> text.isEmpty() ? "" : "LIST_END " + text;
+            case BinaryProtocol.ROOM_INFO -> "ROOM " + text;
+            default -> text; // STATUS, HISTORY, ROOM
+        };
+    }
+
+    private void writeFrame(byte op, long seq, String payload) throws IOException {
+        byte[] p = payload.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream out = frameOut;
+        synchronized (out) {
+            out.writeInt(BinaryProtocol.HEADER + p.length);
+            out.writeByte(op);
+            out.writeInt(0);
+            out.writeLong(seq);
+            out.write(p);
+            out.flush();
+        }
+    }
+
+    /** Sends a command in the negotiated protocol; {@code line} is its text form. */
+    private void sendCommand(byte op, String payload, String line) {
+        sendCommand(op, 0, payload, line);
+    }
+
+    private void sendCommand(byte op, long seq, String payload, String line) {
+        if (!binary) {
+            serverWriter.println(line);
+            return;
+        }
+        try {
+            writeFrame(op, seq, payload);
+        } catch (IOException ignored) {
+            // the listener notices the broken connection and reconnects
+        }
+    }
+
+    private static synchronized void recordHandshake(SSLSession s, long startMillis, long startNanos) {
+        boolean resumed = s.getCreationTime() < startMillis;
+        handshakes++;
+        if (resumed)
+            resumedHandshakes++;
+        System.out.printf("TLS handshake %.1f ms (%s), %d/%d resumed%n",
+                (System.nanoTime() - startNanos) / 1e6, resumed ? "resumed" : "full",
+                resumedHandshakes, handshakes);
     }
 
     private void initialReconnect() {
@@ -305,14 +470,15 @@ public class ChatClient {
         listenerThread = new Thread(() -> {
             try {
                 String line;
-                while ((line = serverReader.readLine()) != null) {
-                    final String msg = line;
+                while ((line = readServerLine()) != null) {
+                    final String msg = stripSeq(line);
                     SwingUtilities.invokeLater(() -> {
-                        if (mode == Mode.ROOMS) {
-                            if (!msg.isBlank())
-                                roomListModel.addElement(msg);
+                        // a page may still be arriving after the user entered a room
+                        if (mode == Mode.ROOMS
+                                || listInFlight > 0 && (msg.startsWith("ROOM ") || msg.startsWith("LIST_END "))) {
+                            onRoomsLine(msg);
                         } else if (mode == Mode.CHAT) {
-                            messageArea.append(msg + "\n");
+                            appendChatLine(msg);
                         }
                     });
                 }
@@ -326,6 +492,99 @@ public class ChatClient {
         listenerThread.start();
     }
 
+    /** Records and removes the "MSG <seq> " prefix of room messages. */
+    private String stripSeq(String line) {
+        if (!line.startsWith("MSG "))
+            return line;
+        int sp = line.indexOf(' ', 4);
+        if (sp < 0)
+            return line;
+        try {
+            lastSeq = Long.parseLong(line.substring(4, sp));
+        } catch (NumberFormatException e) {
+            return line;
+        }
+        // persisted at most once a second; a stale value only means a few duplicates on replay
+        long now = System.currentTimeMillis();
+        if (now - lastSeqSavedAt >= 1000) {
+            lastSeqSavedAt = now;
+            saveSession();
+        }
+        return line.substring(sp + 1);
+    }
+
+    /** Messages covered by a "GAP <from> <to>" line, or -1 if it is not one. */
+    private static long gapSize(String msg) {
+        String[] g = msg.split(" ");
+        if (g.length != 3)
+            return -1;
+        try {
+            long from = Long.parseLong(g[1]), to = Long.parseLong(g[2]);
+            return to >= from ? to - from + 1 : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void appendChatLine(String msg) {
+        if (msg.startsWith("GAP ")) {
+            long missed = gapSize(msg);
+            if (missed >= 0) {
+                messageArea.append("⚠️ " + missed + " messages were missed while disconnected or falling behind.\n");
+                return;
+            }
+        }
+        if (msg.startsWith("SLOW_CONSUMER ")) {
+            messageArea.append("⚠️ Your connection is falling behind; messages may be skipped.\n");
+            return;
+        }
+        if ("INVALID_MESSAGE".equals(msg)) {
+            messageArea.append("⚠️ Your message was not sent: it contains control characters.\n");
+            return;
+        }
+        if (msg.startsWith("RATE_LIMITED ")) {
+            messageArea.append("⚠️ Slow down: your message was not sent (retry in "
+                    + msg.substring("RATE_LIMITED ".length()) + " ms).\n");
+            return;
+        }
+        if (msg.startsWith("BOT_PART ")) {
+            if (!botStreaming) {
+                messageArea.append("Bot: ");
+                botStreaming = true;
+            }
+            messageArea.append(unescapeStreamChunk(msg.substring("BOT_PART ".length())));
+        } else if ("BOT_END".equals(msg)) {
+            if (botStreaming)
+                messageArea.append("\n");
+            botStreaming = false;
+        } else {
+            // another line arrived mid-stream; the reply resumes on a fresh line
+            if (botStreaming) {
+                messageArea.append("\n");
+                botStreaming = false;
+            }
+            messageArea.append(msg + "\n");
+        }
+    }
+
+    private static String unescapeStreamChunk(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char esc = s.charAt(++i);
+                switch (esc) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    default -> sb.append(esc);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     private void attemptReconnect() {
         if (token == null)
             return;
@@ -333,10 +592,11 @@ public class ChatClient {
             try {
                 Thread.sleep(2000);
                 openSocket();
-                serverReader.readLine();
-                serverReader.readLine();
-                serverWriter.println("TOKEN " + token);
-                String r = serverReader.readLine();
+                if (binary)
+                    writeFrame(BinaryProtocol.TOKEN, lastSeq, token);
+                else
+                    serverWriter.println("TOKEN " + token + " " + lastSeq);
+                String r = readServerLine();
                 if ("RECONNECT_OK".equals(r)) {
                     saveSession(); // in case room changed
                     SwingUtilities.invokeLater(() -> {
@@ -369,18 +629,61 @@ public class ChatClient {
 
     // ----- ROOM FLOWS -----
 
+    /** Starts the room list over from its first page, filtered by the search field. */
     private void fetchRooms() {
-        SwingUtilities.invokeLater(roomListModel::clear);
-        serverWriter.println("LIST");
+        SwingUtilities.invokeLater(() -> {
+            roomListModel.clear();
+            listPrefix = roomSearch.getText().trim();
+            listStale = listInFlight;
+            requestRoomPage(null);
+        });
+    }
+
+    /** Asks for the next page if the list is scrolled near its end (or does not fill the view). */
+    private void loadMoreRooms() {
+        if (listCursor == null || listInFlight > 0)
+            return;
+        JScrollBar bar = roomScroll.getVerticalScrollBar();
+        if (bar.getValue() + 2 * bar.getVisibleAmount() >= bar.getMaximum())
+            requestRoomPage(listCursor);
+    }
+
+    private void requestRoomPage(String cursor) {
+        listInFlight++;
+        listCursor = null;
+        String p = listPrefix.isEmpty() ? "-" : listPrefix;
+        String c = cursor == null ? "-" : cursor;
+        sendCommand(BinaryProtocol.LIST, ROOM_PAGE, listPrefix + "\0" + (cursor == null ? "" : cursor),
+                "LIST " + p + " " + c + " " + ROOM_PAGE);
+    }
+
+    /** A server line while the room list is showing; only LIST page replies matter here. */
+    private void onRoomsLine(String msg) {
+        if (msg.startsWith("LIST_END ")) {
+            listInFlight--;
+            if (listStale > 0) {
+                listStale--;
+                return;
+            }
+            String c = msg.substring("LIST_END ".length()).trim();
+            listCursor = "-".equals(c) ? null : c;
+            loadMoreRooms();
+        } else if (msg.startsWith("ROOM ") && listStale == 0) {
+            RoomEntry e = RoomEntry.parse(msg.substring("ROOM ".length()));
+            if (e != null)
+                roomListModel.addElement(e);
+        }
     }
 
     private void joinRoom() {
-        String r = roomList.getSelectedValue();
-        if (r == null)
+        RoomEntry sel = roomList.getSelectedValue();
+        if (sel == null)
             return;
+        String r = sel.name();
         currentRoomName = r;
+        lastSeq = 0;
         saveSession();
-        serverWriter.println(r);
+        sendCommand(BinaryProtocol.JOIN, r, r);
         SwingUtilities.invokeLater(() -> {
             messageArea.setText("");
             showChat();
@@ -395,9 +698,14 @@ public class ChatClient {
                 JOptionPane.PLAIN_MESSAGE);
         if (n == null || n.isBlank())
             return;
+        if (n.trim().startsWith("/")) {
+            JOptionPane.showMessageDialog(frame, "Room names cannot start with '/'.");
+            return;
+        }
         currentRoomName = n.trim();
+        lastSeq = 0;
         saveSession();
-        serverWriter.println(currentRoomName);
+        sendCommand(BinaryProtocol.JOIN, currentRoomName, currentRoomName);
         SwingUtilities.invokeLater(() -> {
             messageArea.setText("");
             showChat();
@@ -405,8 +713,9 @@ public class ChatClient {
     }
 
     private void exitRoom() {
-        serverWriter.println("EXIT");
+        sendCommand(BinaryProtocol.EXIT, "", "EXIT");
         currentRoomName = null;
+        lastSeq = 0;
         saveSession();
         SwingUtilities.invokeLater(() -> showRooms());
         fetchRooms();
@@ -414,7 +723,7 @@ public class ChatClient {
 
     private void doLogout() {
         if (serverWriter != null) {
-            serverWriter.println("LOGOUT");
+            sendCommand(BinaryProtocol.LOGOUT, "", "LOGOUT");
         }
         token = null;
         currentRoomName = null;
@@ -439,7 +748,13 @@ public class ChatClient {
         String t = inputField.getText().trim();
         if (t.isEmpty())
             return;
-        serverWriter.println(t);
+        // "/" starts a command such as /STATS; "//" sends text that starts with a slash
+        if ("/STATS".equalsIgnoreCase(t))
+            sendCommand(BinaryProtocol.STATS, "", t);
+        else if (t.startsWith("/") && !t.startsWith("//"))
+            sendCommand(BinaryProtocol.COMMAND, t.substring(1), t);
+        else
+            sendCommand(BinaryProtocol.SAY, t.startsWith("//") ? t.substring(1) : t, t);
         SwingUtilities.invokeLater(() -> inputField.setText(""));
     }
 
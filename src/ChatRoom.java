@@ -1,69 +1,951 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ChatRoom {
+    private static final int AI_MAX_PENDING = Integer.getInteger("chat.ai.maxPendingPerRoom", 8);
+    private static final int AI_MAX_BATCH = Math.max(1, Integer.getInteger("chat.ai.maxBatch", 8));
+    // batched rooms pay the AI budget once per model turn, in aiLoop, rather than per message
+    static final boolean AI_BATCHES = AI_MAX_BATCH > 1;
+    private static final long AI_DEBOUNCE_NANOS = Long.getLong("chat.ai.debounceMs", 500) * 1_000_000L;
+    private static final long AI_MAX_WAIT_NANOS = Long.getLong("chat.ai.maxWaitMs", 2000) * 1_000_000L;
+    private static final boolean AI_STREAM = Boolean.parseBoolean(System.getProperty("chat.ai.stream", "true"));
+    private static final int STREAM_CHUNK_CHARS = Integer.getInteger("chat.ai.streamChunkChars", 48);
+    private static final long STREAM_INTERVAL_NANOS = Long.getLong("chat.ai.streamIntervalMs", 150) * 1_000_000L;
+    private static final int CONTEXT_TOKENS = Integer.getInteger("chat.ai.contextTokens", 3000);
+    private static final boolean SUMMARIZE = Boolean.getBoolean("chat.ai.summarize");
+    private static final boolean CACHE_REPLIES = Boolean.getBoolean("chat.ai.cache");
+    private static final int REPLAY_ON_JOIN = Integer.getInteger("chat.log.replayOnJoin", 50);
+    private static final int REPLAY_RING = Integer.getInteger("chat.room.replayRing", 1024);
+    // sequence numbers reserved on disk at a time, so a restarted owner never reuses one
+    private static final long SEQ_BLOCK = 4096;
+    private static final double MESSAGES_PER_SEC = Double.parseDouble(System.getProperty("chat.rate.room.messagesPerSec", "100"));
+    private static final int MESSAGE_BURST = Integer.getInteger("chat.rate.room.messageBurst", 200);
+    private static final double AI_PER_MIN = Double.parseDouble(System.getProperty("chat.rate.room.aiPerMin", "30"));
+    private static final int AI_BURST = Integer.getInteger("chat.rate.room.aiBurst", 5);
+    // sends partial replies that have waited chat.ai.streamIntervalMs while the model is silent
+    private static final ScheduledExecutorService STREAM_FLUSH = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofVirtual().name("stream-flush").factory());
+    private static final String SUMMARY_PROMPT = "Summarize the conversation below in a few sentences, "
+            + "keeping names, facts and open questions. Reply with the summary only.";
+
+    private final int id;
     private final String name;
     private final boolean ai;
-    private final List<ClientHandler> clients = new ArrayList<>();
-    private final List<Message> history = new ArrayList<>();
+    // in cluster mode, the node that owns this room when it is not this one
+    private final String owner;
+    // immutable member snapshot, swapped on join/leave so fan-out never locks
+    private final AtomicReference<List<ClientHandler>> clients = new AtomicReference<>(List.of());
+    // owner side: nodes with members here, which get every message; swapped like clients
+    private final AtomicReference<List<String>> peers = new AtomicReference<>(List.of());
+    // mirror side: whether the owner has been asked for this room's messages
+    private final ReentrantLock subLock = new ReentrantLock();
+    private boolean subscribed;
+    // mirror side: the latest SUB sent, which the owner's HISTORY answer echoes
+    private volatile long subscription;
+    // mirror side, guarded by seqLock: whether tail holds the owner's join replay, and
+    // the members that joined before it arrived, who get nothing until it does
+    private boolean historyKnown;
+    private final List<ClientHandler> awaitingHistory = new ArrayList<>();
+    private final ContextWindow history = new ContextWindow(CONTEXT_TOKENS, SUMMARIZE);
     private final ReentrantLock lock = new ReentrantLock();
+    // AI turns run one at a time, off the room lock; messages that arrive
+    // while one is in flight or being debounced are answered together
+    private final ExecutorService aiWorker;
+    private final AtomicInteger aiPending = new AtomicInteger();
+    // messages not yet sent to the model and the worker's state; guarded by lock
+    private final List<String> aiInbox = new ArrayList<>();
+    private final Condition aiArrived = lock.newCondition();
+    private boolean aiRunning;
+    private long aiFirstAt, aiLastAt;
+    // answer repeated conversations from the shared ResponseCache; admins toggle it with CACHE ON|OFF
+    private volatile boolean cacheReplies = CACHE_REPLIES;
+    private final RoomLog log;
+    // room-wide chat budgets, on top of each member's own
+    final TokenBucket messages = new TokenBucket(MESSAGES_PER_SEC, MESSAGE_BURST);
+    final TokenBucket aiTurns = new TokenBucket(AI_PER_MIN / 60, AI_BURST);
+    // sequencing and the replay ring happen together, so a rejoin can't fall
+    // between them; fan-out happens after, off the lock
+    private final ReentrantLock seqLock = new ReentrantLock();
+    private Broadcast[] ring; // allocated by the first message, since most mirrors never carry one
+    private long seq;
+    private long seqCeiling; // highest seq the log has been asked to reserve
+    // sequenced messages not yet delivered, in seq order; one thread at a time drains it
+    private final ConcurrentLinkedQueue<Broadcast> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // logged lines, newline-terminated, that a fresh join can't read from the log yet because
+    // their batch is not synced (on a mirror, which has no log: all of them), at most
+    // chat.log.replayOnJoin; tail holds records tailFrom..logged-1. Guarded by seqLock.
+    private final ArrayDeque<ByteBuffer> tail = new ArrayDeque<>();
+    private long tailFrom;
+    private long logged;
+    // written by the draining thread, read by STATS
+    private volatile long broadcastCount;
+    private volatile long fanoutMicrosTotal;
+    private volatile long fanoutMicrosMax;
+
+    public ChatRoom(int id, String n, boolean isAI) {
+        this(id, n, isAI, null);
+    }
 
-    public ChatRoom(String n, boolean isAI) {
+    /**
+     * A room owned by another cluster node ({@code owner} non-null) is a
+     * mirror: it has no log or AI worker of its own and only relays.
+     */
+    public ChatRoom(int id, String n, boolean isAI, String owner) {
+        this.id = id;
         name = n;
         ai = isAI;
+        this.owner = owner;
+        aiWorker = isAI && owner == null ? Executors.newSingleThreadExecutor(Thread.ofVirtual().name("ai-" + n).factory()) : null;
+        RoomLog l = null;
+        if (owner == null) {
+            try {
+                l = new RoomLog(RoomLog.baseDir().resolve(RoomLog.dirName(n)));
+            } catch (IOException e) {
+                System.err.println("Room log for " + n + " unavailable: " + e);
+            }
+        }
+        log = l;
+        if (log != null) {
+            seq = seqCeiling = log.reservedSeq();
+            logged = tailFrom = log.endOffset();
+        }
+        if (ai && log != null)
+            restoreHistory();
+    }
+
+    /** Seeds the AI context from the end of the log so a restarted room keeps its conversation. */
+    private void restoreHistory() {
+        try {
+            log.replayLast(REPLAY_ON_JOIN, frame -> {
+                String line = ClientHandler.decodeLine(frame);
+                if (line.startsWith("Bot: "))
+                    history.add(new Message("assistant", line.substring(5)));
+                else
+                    history.add(new Message("user", line));
+            });
+            history.drainEvicted();
+        } catch (IOException e) {
+            System.err.println("Room log replay for " + name + " failed: " + e);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Shutdown: closes the log, noting where the sequence ended. */
+    public void close() {
+        if (log == null)
+            return;
+        seqLock.lock();
+        try {
+            log.close(seq);
+        } finally {
+            seqLock.unlock();
+        }
     }
 
     public boolean isAIRoom() {
         return ai;
     }
 
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isRemote() {
+        return owner != null;
+    }
+
+    public int getMemberCount() {
+        return clients.get().size();
+    }
+
     public void addClient(ClientHandler c) {
-        lock.lock();
+        addMember(c, -1);
+        broadcastAll("[" + c.getUsername() + " enters the room]");
+    }
+
+    /**
+     * {@code resumeFrom}: on a mirror that is not subscribed yet, the owner
+     * replays what came after it (negative for nothing).
+     */
+    private void addMember(ClientHandler c, long resumeFrom) {
+        clients.updateAndGet(cur -> {
+            List<ClientHandler> next = new ArrayList<>(cur.size() + 1);
+            next.addAll(cur);
+            next.add(c);
+            return List.copyOf(next);
+        });
+        if (owner != null)
+            syncSubscription(resumeFrom);
+    }
+
+    /**
+     * Mirror side: subscribed to the owner exactly while there are local
+     * members. Unsubscribing forgets the join replay, which would go stale;
+     * that only happens when the last member leaves, under seqLock.
+     */
+    private void syncSubscription(long resumeFrom) {
+        subLock.lock();
         try {
-            clients.add(c);
-            broadcastAll("[" + c.getUsername() + " enters the room]");
+            boolean want = !clients.get().isEmpty();
+            if (want != subscribed) {
+                subscribed = want;
+                if (want) {
+                    Cluster.send(owner, subscribeFrame(resumeFrom));
+                } else {
+                    Cluster.send(owner, Cluster.UNSUB, name, 0, new byte[0]);
+                    historyKnown = false;
+                    tail.clear();
+                    tailFrom = logged = 0;
+                }
+            }
         } finally {
-            lock.unlock();
+            subLock.unlock();
+        }
+    }
+
+    /** Mirror side: a SUB frame numbered so the owner's HISTORY answer can be matched to it. */
+    ByteBuffer subscribeFrame(long resumeFrom) {
+        long id = ++subscription;
+        return Cluster.frame(Cluster.SUB, name, resumeFrom, Cluster.longBytes(id));
+    }
+
+    /**
+     * Owner side: {@code node} has members in this room from now on. It is
+     * first sent the join replay as HISTORY, answering subscription
+     * {@code subscription}, then what followed {@code lastSeq} (none if
+     * negative), from the ring or as a GAP, the way {@link #rejoin} catches up
+     * a client.
+     */
+    void addPeer(String node, long lastSeq, long subscription) {
+        seqLock.lock();
+        try {
+            sendHistory(node, subscription);
+            if (lastSeq > seq) {
+                // the mirror has seen more than we remember: we lost our place, so carry on from its
+                seq = lastSeq;
+            } else if (lastSeq >= 0) {
+                replayAfter(lastSeq, b -> Cluster.send(node, Cluster.MSG, name, b.seq, b.body),
+                        (from, to) -> Cluster.send(node, Cluster.GAP, name, from, Cluster.longBytes(to)));
+            }
+            peers.updateAndGet(cur -> {
+                if (cur.contains(node))
+                    return cur;
+                List<String> next = new ArrayList<>(cur);
+                next.add(node);
+                return List.copyOf(next);
+            });
+            if (ai)
+                Cluster.send(node, Cluster.CACHE, name, cacheReplies ? 1 : 0, new byte[0]);
+        } finally {
+            seqLock.unlock();
+        }
+    }
+
+    /**
+     * HISTORY: the subscription it answers, then each join replay line as a
+     * length and its bytes, the oldest ones left out if they would not fit in
+     * a link frame; caller holds seqLock.
+     */
+    private void sendHistory(String node, long subscription) {
+        List<ByteBuffer> lines = new ArrayList<>();
+        replayRecent(lines::add);
+        int size = 8, first = lines.size();
+        while (first > 0 && size + 4 + lines.get(first - 1).remaining() <= Cluster.MAX_BODY) {
+            first--;
+            size += 4 + lines.get(first).remaining();
+        }
+        ByteBuffer body = ByteBuffer.allocate(size).putLong(subscription);
+        for (ByteBuffer line : lines.subList(first, lines.size()))
+            body.putInt(line.remaining()).put(line.duplicate());
+        Cluster.send(node, Cluster.HISTORY, name, seq, body.array());
+    }
+
+    /**
+     * Mirror side: the owner's join replay, up to its message {@code ownerSeq}.
+     * It replaces this node's; if it answers the latest subscription, members
+     * waiting for it get it and then every message after {@code ownerSeq}.
+     */
+    void remoteHistory(long subscription, long ownerSeq, List<ByteBuffer> lines) {
+        seqLock.lock();
+        try {
+            tail.clear();
+            tail.addAll(lines);
+            tailFrom = 0;
+            logged = lines.size();
+            trimTail();
+            if (subscription != this.subscription)
+                return;
+            historyKnown = true;
+            for (ClientHandler c : awaitingHistory) {
+                for (ByteBuffer line : tail)
+                    c.sendHistory(line);
+                c.setJoinSeq(ownerSeq);
+            }
+            awaitingHistory.clear();
+        } finally {
+            seqLock.unlock();
+        }
+    }
+
+    void removePeer(String node) {
+        peers.updateAndGet(cur -> {
+            List<String> next = new ArrayList<>(cur);
+            next.remove(node);
+            return List.copyOf(next);
+        });
+    }
+
+    /**
+     * Re-adds a reconnecting member, first sending every message after
+     * {@code lastSeq} that is still in the ring, or a GAP line for the part that
+     * has been overwritten. A negative {@code lastSeq} skips the replay.
+     * Messages sequenced before this but not yet fanned out are left to the
+     * replay, so none arrives twice. On a mirror that has fallen behind the
+     * client, the owner replays the rest when the mirror subscribes.
+     */
+    public void rejoin(ClientHandler c, long lastSeq) {
+        seqLock.lock();
+        try {
+            if (lastSeq >= 0)
+                replayAfter(lastSeq, c::deliver, c::sendGap);
+            // a mirror may be behind a client that was last on another node
+            long caughtUp = owner != null && lastSeq > seq ? lastSeq : seq;
+            c.setJoinSeq(caughtUp);
+            addMember(c, lastSeq < 0 ? -1 : caughtUp);
+        } finally {
+            seqLock.unlock();
+        }
+        broadcastAll("[" + c.getUsername() + " enters the room]");
+    }
+
+    private interface GapSink {
+        void gap(long from, long to);
+    }
+
+    /**
+     * Passes on every message after {@code lastSeq} that is still in the ring,
+     * and the runs that are not (overwritten, or from before a restart or
+     * before a mirror subscribed) as gaps; caller holds seqLock.
+     */
+    private void replayAfter(long lastSeq, Consumer<Broadcast> msg, GapSink gap) {
+        long from = Math.max(lastSeq + 1, seq - REPLAY_RING + 1);
+        long missing = from > lastSeq + 1 ? lastSeq + 1 : 0; // first seq of the current run of misses
+        for (long s = from; s <= seq; s++) {
+            Broadcast b = ring != null ? ring[(int) (s % REPLAY_RING)] : null;
+            if (b != null && b.seq == s) {
+                if (missing != 0) {
+                    gap.gap(missing, s - 1);
+                    missing = 0;
+                }
+                msg.accept(b);
+            } else if (missing == 0) {
+                missing = s;
+            }
+        }
+        if (missing != 0 && missing <= seq)
+            gap.gap(missing, seq);
+    }
+
+    public long getLastSeq() {
+        seqLock.lock();
+        try {
+            return seq;
+        } finally {
+            seqLock.unlock();
+        }
+    }
+
+    /**
+     * A fresh join: replays recent history to the newcomer, then adds them,
+     * both under seqLock like {@link #rejoin}, so every logged line is either
+     * replayed or delivered live, exactly once. A mirror that has yet to hear
+     * the owner's replay holds the newcomer back until it does.
+     */
+    public void join(ClientHandler c) {
+        seqLock.lock();
+        try {
+            if (owner != null && !historyKnown) {
+                c.setJoinSeq(Long.MAX_VALUE);
+                awaitingHistory.add(c);
+            } else {
+                replayRecent(c::sendHistory);
+                c.setJoinSeq(seq);
+            }
+            addMember(c, -1);
+        } finally {
+            seqLock.unlock();
         }
+        broadcastAll("[" + c.getUsername() + " enters the room]");
     }
 
     public void removeClient(ClientHandler c) {
-        lock.lock();
+        seqLock.lock();
         try {
-            clients.remove(c);
-            broadcastAll("[" + c.getUsername() + " leaves the room]");
+            clients.updateAndGet(cur -> {
+                if (!cur.contains(c))
+                    return cur;
+                List<ClientHandler> next = new ArrayList<>(cur);
+                next.remove(c);
+                return List.copyOf(next);
+            });
+            if (owner != null) {
+                awaitingHistory.remove(c);
+                syncSubscription(-1);
+            }
         } finally {
-            lock.unlock();
+            seqLock.unlock();
         }
+        broadcastAll("[" + c.getUsername() + " leaves the room]");
     }
 
     public void broadcastAll(String msg) {
+        broadcast(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** An unlogged notice forwarded by a mirror on another node. */
+    void post(byte[] body) {
+        broadcast(body);
+    }
+
+    /**
+     * Assigns the next sequence number to a message, keeps it in the replay
+     * ring and hands it to every node mirroring the room, then to every
+     * member, which picks its own wire encoding. A mirror forwards it to the
+     * owner instead.
+     */
+    private void broadcast(byte[] body) {
+        broadcast(body, false);
+    }
+
+    /** {@code logged}: also append it to the room's log and the lines replayed to joiners. */
+    private void broadcast(byte[] body, boolean logged) {
+        if (owner != null) {
+            Cluster.send(owner, Cluster.POST, name, 0, body);
+            return;
+        }
+        seqLock.lock();
+        try {
+            long s = nextSeq();
+            sequenced(new Broadcast(id, s, body));
+            List<String> nodes = peers.get();
+            if (!nodes.isEmpty()) {
+                ByteBuffer f = Cluster.frame(logged ? Cluster.LOGGED : Cluster.MSG, name, s, body);
+                for (String n : nodes)
+                    Cluster.send(n, f);
+            }
+            if (logged)
+                logLine(body);
+        } finally {
+            seqLock.unlock();
+        }
+        drain();
+    }
+
+    /**
+     * Owner side; caller holds seqLock. Sequence numbers are reserved on disk
+     * SEQ_BLOCK at a time, half a block ahead, by the log's writer, once the
+     * room has logged something.
+     */
+    private long nextSeq() {
+        long s = ++seq;
+        if (log != null && s > seqCeiling - SEQ_BLOCK / 2 && log.reserveSeq(s + SEQ_BLOCK))
+            seqCeiling = s + SEQ_BLOCK;
+        return s;
+    }
+
+    /** Appends to the log and the join replay; caller holds seqLock. */
+    private void logLine(byte[] body) {
+        if (log != null)
+            log.appendLine(body);
+        byte[] line = Arrays.copyOf(body, body.length + 1);
+        line[body.length] = '\n';
+        tail.addLast(ByteBuffer.wrap(line).asReadOnlyBuffer());
+        logged++;
+        trimTail();
+    }
+
+    /** Drops lines the log has synced, and any beyond the replay length; caller holds seqLock. */
+    private void trimTail() {
+        long synced = log != null ? log.endOffset() : 0;
+        while (!tail.isEmpty() && (tailFrom < synced || tail.size() > REPLAY_ON_JOIN)) {
+            tail.removeFirst();
+            tailFrom++;
+        }
+    }
+
+    /**
+     * The last chat.log.replayOnJoin logged lines, oldest first: the synced
+     * ones mapped from the log, the rest from {@link #tail}; caller holds seqLock.
+     */
+    private void replayRecent(Consumer<ByteBuffer> sink) {
+        trimTail();
+        long from = Math.max(0, logged - REPLAY_ON_JOIN);
+        if (log != null && from < tailFrom) {
+            try {
+                log.replay(from, tailFrom, sink);
+            } catch (IOException e) {
+                System.err.println("Room log replay for " + name + " failed: " + e);
+            }
+        }
+        long off = tailFrom;
+        for (ByteBuffer line : tail)
+            if (off++ >= from)
+                sink.accept(line);
+    }
+
+    /**
+     * Mirror side: a message the owner sequenced, delivered to the members on
+     * this node, and if {@code logged} added to the join replay. One the
+     * mirror already has, e.g. replayed again after a link reconnect, is
+     * ignored.
+     */
+    void remoteBroadcast(long s, byte[] body, boolean logged) {
+        seqLock.lock();
+        try {
+            if (s <= seq)
+                return;
+            seq = s;
+            sequenced(new Broadcast(id, s, body));
+            if (logged)
+                logLine(body);
+        } finally {
+            seqLock.unlock();
+        }
+        drain();
+    }
+
+    /** Mirror side: a line the owner logged without broadcasting it, e.g. a streamed reply in full. */
+    void remoteLogged(byte[] body) {
+        seqLock.lock();
+        try {
+            logLine(body);
+        } finally {
+            seqLock.unlock();
+        }
+    }
+
+    /**
+     * Mirror side: messages {@code from}..{@code to} the owner no longer has.
+     * They are reported to members that joined before them; only the link
+     * thread fans out on a mirror, so this stays in order with the messages.
+     */
+    void remoteGap(long from, long to) {
+        seqLock.lock();
+        try {
+            if (to <= seq)
+                return;
+            for (var c : clients.get()) {
+                long joined = c.getJoinSeq();
+                if (joined < to)
+                    c.sendGap(Math.max(from, joined + 1), to);
+            }
+            seq = to;
+        } finally {
+            seqLock.unlock();
+        }
+    }
+
+    /** Keeps {@code b} in the replay ring and queues it for members; caller holds seqLock. */
+    private void sequenced(Broadcast b) {
+        if (ring == null)
+            ring = new Broadcast[REPLAY_RING];
+        ring[(int) (b.seq % REPLAY_RING)] = b;
+        outbox.add(b);
+    }
+
+    /**
+     * Fans out queued messages unless another thread already is; that thread
+     * picks up what was queued here, so members still see sequence order. The
+     * re-check after letting go covers a message queued just before.
+     */
+    private void drain() {
+        while (!outbox.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                Broadcast b;
+                while ((b = outbox.poll()) != null)
+                    fanOut(b);
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void fanOut(Broadcast b) {
+        long start = System.nanoTime();
+        for (var c : clients.get()) {
+            if (b.seq > c.getJoinSeq())
+                c.deliver(b);
+        }
+        long us = (System.nanoTime() - start) / 1000;
+        Metrics.broadcasts.increment();
+        Metrics.fanoutMicros.record(us);
+        broadcastCount++;
+        fanoutMicrosTotal += us;
+        if (us > fanoutMicrosMax)
+            fanoutMicrosMax = us;
+    }
+
+    /** Broadcasts a chat line and appends it to the room's log. */
+    private void broadcastLogged(byte[] body) {
+        broadcast(body, true);
+    }
+
+    /**
+     * A member's message as UTF-8 "user: text". {@code from} is null when the
+     * member is on another cluster node; a mirror passes the message to the
+     * owner.
+     */
+    public void userMessage(byte[] body, ClientHandler from) {
+        if (owner != null) {
+            Cluster.send(owner, Cluster.SAY, name, 0, body);
+            return;
+        }
+        broadcastLogged(body);
+        if (!ai)
+            return;
+        if (aiPending.incrementAndGet() > AI_MAX_PENDING) {
+            aiPending.decrementAndGet();
+            if (from != null)
+                from.sendMessage("Bot: [Busy, please wait for the pending replies]");
+            return;
+        }
+        String text = new String(body, StandardCharsets.UTF_8);
         lock.lock();
         try {
-            for (var c : clients)
-                c.sendMessage(msg);
+            long now = System.nanoTime();
+            if (aiInbox.isEmpty())
+                aiFirstAt = now;
+            aiLastAt = now;
+            aiInbox.add(text);
+            aiArrived.signal();
+            if (!aiRunning) {
+                aiRunning = true;
+                aiWorker.execute(this::aiLoop);
+            }
         } finally {
             lock.unlock();
         }
     }
 
-    public void userMessage(String userMsg, ClientHandler from) {
-        broadcastAll(userMsg);
-        if (ai) {
+    /**
+     * Drains the AI inbox, one model turn per batch. A batch is sent once
+     * chat.ai.debounceMs pass with no new message, chat.ai.maxWaitMs after
+     * its first message, or as soon as it holds chat.ai.maxBatch messages,
+     * whichever comes first. Messages posted during a turn are already past
+     * their wait when it ends, so they go out together right after it. Each
+     * turn takes one token of the room's AI budget, and a batch that is ready
+     * waits for one, gathering more messages meanwhile.
+     */
+    private void aiLoop() {
+        while (true) {
+            List<String> batch;
             lock.lock();
             try {
-                history.add(new Message("user", userMsg));
-                String bot = ChatServer.getAIChatResponse(history);
-                if (bot != null) {
-                    history.add(new Message("assistant", bot));
-                    broadcastAll("Bot: " + bot);
-                } else {
-                    broadcastAll("Bot: [No response available]");
+                while (true) {
+                    if (aiInbox.isEmpty()) {
+                        aiRunning = false;
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    long wait = aiInbox.size() >= AI_MAX_BATCH ? 0
+                            : Math.min(aiLastAt + AI_DEBOUNCE_NANOS, aiFirstAt + AI_MAX_WAIT_NANOS) - now;
+                    if (wait <= 0 && AI_BATCHES)
+                        wait = aiTurns.tryAcquire(now);
+                    if (wait <= 0)
+                        break;
+                    aiArrived.awaitNanos(wait);
+                }
+                List<String> head = aiInbox.subList(0, Math.min(AI_MAX_BATCH, aiInbox.size()));
+                batch = List.copyOf(head);
+                head.clear();
+                if (!aiInbox.isEmpty())
+                    aiFirstAt = System.nanoTime();
+            } catch (InterruptedException e) {
+                aiRunning = false;
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Metrics.aiTurns.increment();
+                Metrics.aiBatchSize.record(batch.size());
+                aiTurn(batch);
+            } finally {
+                aiPending.addAndGet(-batch.size());
+            }
+        }
+    }
+
+    public long getBroadcastCount() {
+        return broadcastCount;
+    }
+
+    public double getFanoutMeanMicros() {
+        long n = broadcastCount;
+        return n == 0 ? 0 : (double) fanoutMicrosTotal / n;
+    }
+
+    public long getFanoutMaxMicros() {
+        return fanoutMicrosMax;
+    }
+
+    public int getPendingAIRequests() {
+        return aiPending.get();
+    }
+
+    public boolean isCachingReplies() {
+        return cacheReplies;
+    }
+
+    /**
+     * On a mirror the owner decides, and reports back to every mirror; until
+     * then this node still shows the old setting.
+     */
+    public void setCachingReplies(boolean on) {
+        if (owner != null) {
+            Cluster.send(owner, Cluster.CACHE, name, on ? 1 : 0, new byte[0]);
+            return;
+        }
+        cacheReplies = on;
+        ByteBuffer f = Cluster.frame(Cluster.CACHE, name, on ? 1 : 0, new byte[0]);
+        for (String n : peers.get())
+            Cluster.send(n, f);
+    }
+
+    /** A CACHE link op: a mirror asking the owner, or the owner reporting to a mirror. */
+    void cachingSetRemotely(boolean on) {
+        if (owner != null)
+            cacheReplies = on;
+        else
+            setCachingReplies(on);
+    }
+
+    /** Adds the batched messages to the context and asks for one reply to all of them. */
+    private void aiTurn(List<String> userMsgs) {
+        List<Message> context;
+        List<Message> evicted;
+        Message oldSummary;
+        lock.lock();
+        try {
+            for (String m : userMsgs)
+                history.add(new Message("user", m));
+            evicted = history.drainEvicted();
+            oldSummary = history.getSummary();
+        } finally {
+            lock.unlock();
+        }
+        if (!evicted.isEmpty())
+            foldIntoSummary(oldSummary, evicted);
+        lock.lock();
+        try {
+            context = history.snapshot();
+        } finally {
+            lock.unlock();
+        }
+        ReplyStream stream = AI_STREAM ? new ReplyStream() : null;
+        ResponseCache cache = ChatServer.getResponseCache();
+        String key = cacheReplies && cache.isEnabled() ? cache.key(ChatServer.getLlmClient().getModel(), context) : null;
+        String bot = key != null ? cache.get(key) : null;
+        if (bot != null) {
+            if (AI_STREAM) {
+                broadcastAll("BOT_PART " + escapeStreamChunk(bot));
+                broadcastAll("BOT_END");
+            }
+        } else {
+            long start = System.nanoTime();
+            try {
+                bot = stream != null ? stream.run(context) : ChatServer.getLlmClient().chat(context);
+            } catch (LlmClient.BusyException e) {
+                broadcastAll("Bot: [Busy, please try again shortly]");
+                return;
+            }
+            if (bot != null && key != null)
+                cache.put(key, bot, System.nanoTime() - start);
+        }
+        if (bot != null) {
+            lock.lock();
+            try {
+                history.add(new Message("assistant", bot));
+            } finally {
+                lock.unlock();
+            }
+            byte[] body = ("Bot: " + bot).getBytes(StandardCharsets.UTF_8);
+            if (!AI_STREAM) {
+                broadcastLogged(body);
+            } else {
+                // already streamed to the room; only the log and join replays keep the whole reply
+                seqLock.lock();
+                try {
+                    logLine(body);
+                    List<String> nodes = peers.get();
+                    if (!nodes.isEmpty()) {
+                        ByteBuffer f = Cluster.frame(Cluster.LOG, name, 0, body);
+                        for (String n : nodes)
+                            Cluster.send(n, f);
+                    }
+                } finally {
+                    seqLock.unlock();
                 }
+            }
+        } else if (stream == null || !stream.started()) {
+            broadcastAll("Bot: [No response available]");
+        }
+    }
+
+    /** Asks the model to fold turns that left the window into the running summary. */
+    private void foldIntoSummary(Message oldSummary, List<Message> evicted) {
+        List<Message> req = new ArrayList<>(evicted.size() + 2);
+        req.add(new Message("system", SUMMARY_PROMPT));
+        if (oldSummary != null)
+            req.add(oldSummary);
+        req.addAll(evicted);
+        try {
+            String text = ChatServer.getLlmClient().chat(req);
+            if (text == null)
+                return;
+            lock.lock();
+            try {
+                history.setSummary(text);
             } finally {
                 lock.unlock();
             }
+        } catch (LlmClient.BusyException e) {
+            // keep the previous summary; the evicted turns are simply dropped
+        }
+    }
+
+    /**
+     * One reply forwarded to the room as BOT_PART lines while it is generated,
+     * in chunks of chat.ai.streamChunkChars or whatever arrived within
+     * chat.ai.streamIntervalMs, and closed with BOT_END. <think> tags are
+     * removed from the chunks as they are from the final reply; a reply that
+     * fails part way is closed with a note instead of a second error line.
+     */
+    private final class ReplyStream {
+        private final ReentrantLock streamLock = new ReentrantLock();
+        private final StringBuilder pending = new StringBuilder();
+        private long lastFlush = System.nanoTime();
+        private boolean started; // a chunk has been sent
+        private boolean tokens; // the model has produced something
+
+        String run(List<Message> context) throws LlmClient.BusyException {
+            ScheduledFuture<?> timer = STREAM_FLUSH.scheduleAtFixedRate(this::flushIfDue,
+                    STREAM_INTERVAL_NANOS, STREAM_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+            String bot;
+            try {
+                bot = ChatServer.getLlmClient().streamChat(context, this::append);
+            } finally {
+                timer.cancel(false);
+            }
+            streamLock.lock();
+            try {
+                if (bot == null && tokens)
+                    pending.append(" [reply interrupted]");
+                flush(true);
+                if (started)
+                    broadcastAll("BOT_END");
+            } finally {
+                streamLock.unlock();
+            }
+            return bot;
+        }
+
+        /** Whether anything reached the room; if not, aiTurn reports a failure itself. */
+        boolean started() {
+            return started;
+        }
+
+        private void append(String token) {
+            streamLock.lock();
+            try {
+                tokens = true;
+                pending.append(token);
+                if (pending.length() >= STREAM_CHUNK_CHARS || System.nanoTime() - lastFlush >= STREAM_INTERVAL_NANOS)
+                    flush(false);
+            } finally {
+                streamLock.unlock();
+            }
+        }
+
+        private void flushIfDue() {
+            streamLock.lock();
+            try {
+                if (System.nanoTime() - lastFlush >= STREAM_INTERVAL_NANOS)
+                    flush(false);
+            } finally {
+                streamLock.unlock();
+            }
+        }
+
+        /** Sends what is pending, except a trailing piece that may be the start of a tag, unless {@code all}. */
+        private void flush(boolean all) {
+            lastFlush = System.nanoTime();
+            int i;
+            while ((i = pending.indexOf("<think>")) >= 0)
+                pending.delete(i, i + 7);
+            while ((i = pending.indexOf("</think>")) >= 0)
+                pending.delete(i, i + 8);
+            if (!started) {
+                // the final reply is trimmed; so is the start of the stream
+                int lead = 0;
+                while (lead < pending.length() && Character.isWhitespace(pending.charAt(lead)))
+                    lead++;
+                pending.delete(0, lead);
+            }
+            int keep = all ? 0 : partialTag();
+            int n = pending.length() - keep;
+            if (n <= 0)
+                return;
+            broadcastAll("BOT_PART " + escapeStreamChunk(pending.subSequence(0, n)));
+            pending.delete(0, n);
+            started = true;
+        }
+
+        /** Length of the longest suffix of pending that is a proper prefix of a think tag. */
+        private int partialTag() {
+            int lt = pending.lastIndexOf("<");
+            if (lt < 0)
+                return 0;
+            String tail = pending.substring(lt);
+            return tail.length() < 8 && ("<think>".startsWith(tail) || "</think>".startsWith(tail)) ? tail.length() : 0;
+        }
+    }
+
+    // partial chunks may contain newlines, which the line protocol cannot carry as-is
+    private static String escapeStreamChunk(CharSequence s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
         }
+        return sb.toString();
     }
 
 }
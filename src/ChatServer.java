@@ -1,63 +1,75 @@
 import java.io.*;
-import java.net.*;
-import java.net.http.*;
+import java.nio.file.Path;
 import java.security.KeyStore;
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.*;
 
 public class ChatServer {
     private static final String USERS_FILE = "users.txt";
-    private static final Map<String, ChatRoom> chatRooms = new HashMap<>();
-    private static final ReentrantLock roomsLock = new ReentrantLock();
-    private static final Map<String, String> users = new HashMap<>();
-    private static final ReentrantLock usersLock = new ReentrantLock();
-    private static final Map<String, Session> sessions = new HashMap<>();
-    private static final ReentrantLock sessionsLock = new ReentrantLock();
+    private static final char[] KEYSTORE_PASS = "changeit".toCharArray();
+    private static final ConcurrentHashMap<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, ChatRoom> roomsById = new ConcurrentHashMap<>();
+    // sorted view of chatRooms for LIST: prefix search and cursor pages without copying every name
+    private static final ConcurrentSkipListMap<String, ChatRoom> roomIndex = new ConcurrentSkipListMap<>();
+    private static final AtomicInteger nextRoomId = new AtomicInteger();
+    private static final String USERS_JOURNAL = "users.journal";
+    private static UserStore users;
+    private static volatile NioServer nioServer;
+    private static final SessionRegistry sessions = new SessionRegistry().start();
+    private static final LlmClient llm = LlmClient.fromSystemProperties();
+    private static final ResponseCache responseCache = ResponseCache.fromSystemProperties();
 
     public static String createSession(String username, ClientHandler handler) {
-        String token = UUID.randomUUID().toString();
-        Session sess = new Session(username, handler);
-        sessionsLock.lock();
-        try {
-            sessions.put(token, sess);
-        } finally {
-            sessionsLock.unlock();
-        }
-        return token;
+        if (!Cluster.isEnabled())
+            return sessions.create(username, handler).token;
+        long ttl = Session.TOKEN_TTL.toNanos();
+        String token = Cluster.issueToken(username, System.currentTimeMillis() + ttl / 1_000_000);
+        return sessions.create(token, username, handler, ttl).token;
     }
 
     public static Session getSession(String token) {
-        sessionsLock.lock();
-        try {
-            Session s = sessions.get(token);
-            if (s == null || s.isExpired()) {
-                sessions.remove(token);
-                return null;
-            }
+        Session s = sessions.get(token);
+        if (s != null || !Cluster.isEnabled())
             return s;
-        } finally {
-            sessionsLock.unlock();
-        }
+        // issued by another node, or by this one before a restart
+        Cluster.TokenClaims c = Cluster.verifyToken(token);
+        if (c == null)
+            return null;
+        long left = c.expiresAtMillis() - System.currentTimeMillis();
+        return left > 0 ? sessions.adopt(token, c.user(), left * 1_000_000) : null;
     }
 
     public static boolean isLoggedIn(String username) {
-        sessionsLock.lock();
-        try {
-            return sessions.values().stream()
-                    .anyMatch(s -> s.username.equals(username) && !s.isExpired());
-        } finally {
-            sessionsLock.unlock();
-        }
+        return sessions.isLoggedIn(username);
     }
 
     public static void removeSession(Session sess) {
-        sessionsLock.lock();
-        try {
-            sessions.entrySet().removeIf(e -> e.getValue() == sess);
-        } finally {
-            sessionsLock.unlock();
-        }
+        sessions.remove(sess);
+        if (Cluster.isEnabled())
+            Cluster.revoke(sess.token);
+    }
+
+    /** Forgets a session logged out on another node. */
+    static void dropSession(String token) {
+        Session s = sessions.get(token);
+        if (s != null)
+            sessions.remove(s);
+    }
+
+    /** The running non-blocking transport, or null in thread-per-socket mode. */
+    static NioServer getNioServer() {
+        return nioServer;
+    }
+
+    public static int getSessionCount() {
+        return sessions.size();
+    }
+
+    public static Collection<Session> getSessions() {
+        return sessions.all();
     }
 
     public static void main(String[] args) throws Exception {
@@ -66,32 +78,69 @@ public class ChatServer {
             return;
         }
         int port = Integer.parseInt(args[0]);
+        // must be set before the JSSE provider initializes
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                System.getProperty("chat.tls.sessionTickets", "true"));
         loadUsers();
-
-        // TLS setup
-        char[] pass = "changeit".toCharArray();
-        KeyStore ks = KeyStore.getInstance("JKS");
-        try (FileInputStream fis = new FileInputStream("certs/serverkeystore.jks")) {
-            ks.load(fis, pass);
+        loadRooms();
+        Metrics.registerMBean();
+        SlowConsumerMonitor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            users.close();
+            for (ChatRoom r : chatRooms.values())
+                r.close();
+        }));
+
+        KeyStore ks = loadKeyStore();
+        SSLContext ctx = createServerContext(ks);
+        if (Cluster.isEnabled())
+            Cluster.start(ctx, ks);
+
+        if ("nio".equalsIgnoreCase(System.getProperty("chat.transport", "threads"))) {
+            int selectors = Integer.getInteger("chat.nio.selectors",
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            nioServer = new NioServer(ctx, port, selectors);
+            nioServer.run();
+            return;
         }
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-        kmf.init(ks, pass);
-        SSLContext ctx = SSLContext.getInstance("TLS");
-        ctx.init(kmf.getKeyManagers(), null, null);
 
         try (SSLServerSocket serv = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(port)) {
             System.out.println("ChatServer listening on port " + port);
             while (true) {
                 SSLSocket sock = (SSLSocket) serv.accept();
+                Metrics.connectionsAccepted.increment();
                 Thread.startVirtualThread(() -> handleClient(sock));
             }
         }
     }
 
+    private static KeyStore loadKeyStore() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream("certs/serverkeystore.jks")) {
+            ks.load(fis, KEYSTORE_PASS);
+        }
+        return ks;
+    }
+
+    private static SSLContext createServerContext(KeyStore ks) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, KEYSTORE_PASS);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        // session-ID resumption (TLS 1.2) is served from this cache; tickets need no server state
+        SSLSessionContext cache = ctx.getServerSessionContext();
+        cache.setSessionCacheSize(Integer.getInteger("chat.tls.sessionCacheSize", 20480));
+        cache.setSessionTimeout(Integer.getInteger("chat.tls.sessionTimeoutSec", 3600));
+        return ctx;
+    }
+
     private static void handleClient(SSLSocket sock) {
         try {
             sock.setEnabledProtocols(new String[] { "TLSv1.2", "TLSv1.3" });
+            long startMillis = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             sock.startHandshake();
+            recordHandshake(sock.getSession(), startMillis, startNanos);
             new ClientHandler(sock).run();
         } catch (Exception e) {
             e.printStackTrace();
@@ -102,156 +151,101 @@ public class ChatServer {
         }
     }
 
-    private static void loadUsers() {
-        usersLock.lock();
-        try {
-            File f = new File(USERS_FILE);
-            if (!f.exists()) {
-                f.createNewFile();
-                return;
-            }
-            try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] p = line.split(":", 2);
-                    if (p.length == 2)
-                        users.put(p[0], p[1]);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Load users failed: " + e);
-        } finally {
-            usersLock.unlock();
+    /** Records a completed server handshake; a resumed session predates the handshake itself. */
+    static void recordHandshake(SSLSession s, long startMillis, long startNanos) {
+        Metrics.tlsHandshakes.increment();
+        Metrics.handshakeMicros.record((System.nanoTime() - startNanos) / 1000);
+        if (s.getCreationTime() < startMillis)
+            Metrics.tlsResumed.increment();
+        long n = Metrics.tlsHandshakes.sum();
+        if (n % 1000 == 0) {
+            System.out.printf("TLS: %d handshakes, %.1f%% resumed, avg %.2f ms%n", n,
+                    100.0 * Metrics.tlsResumed.sum() / n, Metrics.handshakeMicros.mean() / 1000);
         }
     }
 
-    private static void saveUsers() {
-        usersLock.lock();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(USERS_FILE))) {
-            users.forEach((u, p) -> pw.println(u + ":" + p));
-        } catch (IOException e) {
-            System.err.println("Save users failed: " + e);
-        } finally {
-            usersLock.unlock();
-        }
+    private static void loadUsers() throws IOException {
+        long t0 = System.nanoTime();
+        users = new UserStore(Path.of(USERS_FILE), Path.of(USERS_JOURNAL));
+        System.out.println("Loaded " + users.size() + " users in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
     }
 
     public static boolean authenticate(String u, String p) {
-        usersLock.lock();
-        try {
-            return p.equals(users.get(u));
-        } finally {
-            usersLock.unlock();
-        }
+        return users.authenticate(u, p);
     }
 
     public static boolean registerUser(String u, String p) {
-        usersLock.lock();
-        try {
-            if (users.containsKey(u))
-                return false;
-            users.put(u, p);
-            saveUsers();
-            return true;
-        } finally {
-            usersLock.unlock();
-        }
+        if (!users.register(u, p))
+            return false;
+        if (Cluster.isEnabled())
+            Cluster.userRegistered(u, p);
+        return true;
+    }
+
+    static UserStore getUserStore() {
+        return users;
+    }
+
+    /** Reopens every room that has a log on disk. */
+    private static void loadRooms() {
+        File[] dirs = RoomLog.baseDir().toFile().listFiles(File::isDirectory);
+        if (dirs == null)
+            return;
+        for (File d : dirs)
+            getOrCreateRoom(RoomLog.roomName(d.getName()));
+        System.out.println("Restored " + dirs.length + " rooms from " + RoomLog.baseDir());
     }
 
     public static ChatRoom getOrCreateRoom(String name) {
-        roomsLock.lock();
-        try {
-            return chatRooms.computeIfAbsent(name, n -> new ChatRoom(n, n.startsWith("AI_")));
-        } finally {
-            roomsLock.unlock();
-        }
+        ChatRoom room = chatRooms.get(name);
+        if (room != null)
+            return room;
+        return chatRooms.computeIfAbsent(name, n -> {
+            ChatRoom r = new ChatRoom(nextRoomId.incrementAndGet(), n, n.startsWith("AI_"), Cluster.ownerOf(n));
+            roomsById.put(r.getId(), r);
+            roomIndex.put(n, r);
+            if (Cluster.isEnabled() && !r.isRemote())
+                Cluster.roomCreated(n);
+            return r;
+        });
     }
 
-    public static List<String> getRoomNames() {
-        roomsLock.lock();
-        try {
-            return new ArrayList<>(chatRooms.keySet());
-        } finally {
-            roomsLock.unlock();
-        }
+    /** Lookup by the numeric id binary clients use; null if unknown. */
+    public static ChatRoom getRoom(int id) {
+        return roomsById.get(id);
     }
 
-    private static String escapeJson(String s) {
-        return s.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
+    public static Collection<ChatRoom> getRooms() {
+        return chatRooms.values();
     }
 
-    private static String extractAndUnescapeContent(String body) {
-        int idx = body.indexOf("\"content\":");
-        if (idx < 0)
-            return null;
-        int i = body.indexOf('"', idx + 10) + 1;
-        StringBuilder sb = new StringBuilder();
-        while (i < body.length()) {
-            char c = body.charAt(i++);
-            if (c == '\\' && i < body.length()) {
-                char esc = body.charAt(i++);
-                switch (esc) {
-                    case 'u' -> {
-                        String hex = body.substring(i, i + 4);
-                        sb.append((char) Integer.parseInt(hex, 16));
-                        i += 4;
-                    }
-                    case 'n' -> sb.append('\n');
-                    case 'r' -> sb.append('\r');
-                    case 't' -> sb.append('\t');
-                    case '\\' -> sb.append('\\');
-                    case '"' -> sb.append('"');
-                    default -> sb.append(esc);
-                }
-            } else if (c == '"') {
+    /** Every room name in order, read straight off the index. */
+    public static Set<String> getRoomNames() {
+        return roomIndex.keySet();
+    }
+
+    /**
+     * Up to {@code limit} rooms whose names start with {@code prefix}, in name
+     * order, after {@code after} (exclusive; null starts at the beginning).
+     */
+    public static List<ChatRoom> listRooms(String prefix, String after, int limit) {
+        NavigableMap<String, ChatRoom> from = after != null && after.compareTo(prefix) >= 0
+                ? roomIndex.tailMap(after, false)
+                : roomIndex.tailMap(prefix, true);
+        List<ChatRoom> page = new ArrayList<>(Math.min(limit, 256));
+        for (Map.Entry<String, ChatRoom> e : from.entrySet()) {
+            if (page.size() == limit || !e.getKey().startsWith(prefix))
                 break;
-            } else {
-                sb.append(c);
-            }
+            page.add(e.getValue());
         }
-        return sb.toString();
+        return page;
     }
 
-    public static String getAIChatResponse(List<Message> history) {
-        try {
-            StringBuilder arr = new StringBuilder("[");
-            for (int j = 0; j < history.size(); j++) {
-                Message m = history.get(j);
-                arr.append("{\"role\":\"")
-                        .append(escapeJson(m.role))
-                        .append("\",\"content\":\"")
-                        .append(escapeJson(m.content))
-                        .append("\"}");
-                if (j < history.size() - 1)
-                    arr.append(",");
-            }
-            arr.append("]");
-            String payload = "{" +
-                    "\"model\":\"llama3.2\"," +
-                    "\"messages\":" + arr + "," +
-                    "\"stream\":false" +
-                    "}";
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(new URI("http://localhost:11434/api/chat"))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(payload))
-                    .build();
-            HttpResponse<String> resp = HttpClient.newHttpClient()
-                    .send(req, HttpResponse.BodyHandlers.ofString());
-            String content = extractAndUnescapeContent(resp.body());
-            if (content != null) {
-                return content.replace("<think>", "")
-                        .replace("</think>", "")
-                        .trim();
-            }
-            return resp.body();
-        } catch (Exception e) {
-            System.err.println("Cannot contact LLM: " + e.getMessage());
-            return null;
-        }
+    public static LlmClient getLlmClient() {
+        return llm;
+    }
+
+    public static ResponseCache getResponseCache() {
+        return responseCache;
     }
 }
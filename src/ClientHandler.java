@@ -1,178 +1,894 @@
 import java.io.*;
 import java.net.Socket;
+import java.time.Duration;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ClientHandler implements Runnable {
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    private static final OutboundQueue.OverflowPolicy OVERFLOW_POLICY = OutboundQueue.OverflowPolicy
+            .valueOf(System.getProperty("chat.outbound.overflow", "DROP_OLDEST").toUpperCase());
+    private static final long WRITER_DRAIN_MS = 2000;
+    static final int MAX_FRAME = Integer.getInteger("chat.maxFrameBytes", 64 * 1024);
+    // one TLS record carries at most 16 KiB of plaintext
+    private static final int WRITE_CHUNK = 16 * 1024;
+    // frames queued back to back are written together, up to one record's worth
+    static final int COALESCE_BYTES = Math.min(WRITE_CHUNK, Integer.getInteger("chat.outbound.coalesceBytes", WRITE_CHUNK));
+    private static final long LINGER_NANOS = Long.getLong("chat.outbound.lingerMicros", 200) * 1000L;
+    // over-budget chat: REJECT answers RATE_LIMITED <retryAfterMs>, DELAY holds the message back
+    private static final boolean RATE_DELAY = "DELAY".equalsIgnoreCase(System.getProperty("chat.rate.policy", "REJECT"));
+    private static final long RATE_MAX_DELAY_NANOS = Long.getLong("chat.rate.maxDelayMs", 2000) * 1_000_000L;
+    // releases held-back messages for non-blocking transports, which must not sleep
+    private static final ScheduledExecutorService DELAYED = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofVirtual().name("rate-delay").factory());
+    // most rooms one LIST page returns, and what a page without a limit gets
+    private static final int LIST_MAX_PAGE = Integer.getInteger("chat.list.maxPage", 200);
+    private static final LongAdder recordsWritten = new LongAdder();
+    private static final LongAdder framesWritten = new LongAdder();
+
+    private static final String AUTH_PROMPT = "AUTH <user> <pw>  or  REGISTER <user> <pw>  or  TOKEN <token> [<lastSeq>]";
+
+    /** Hooks a non-blocking transport provides in place of the per-connection writer thread. */
+    public interface Transport {
+        /** Frames were queued; the transport should arrange for them to be drained. */
+        void framesQueued();
+
+        /** Closes the connection without blocking the caller. */
+        void close();
+
+        /** Like {@link #close}, but discards unsent output and resets the connection. */
+        default void reset() {
+            close();
+        }
+    }
+
+    private enum State {
+        AUTH, LOBBY, ROOM
+    }
+
     private final Socket sock;
+    private final Transport transport;
     private BufferedReader in;
-    private PrintWriter out;
+    private OutputStream out;
+    private final OutboundQueue outbound = new OutboundQueue(OUTBOUND_CAPACITY, OVERFLOW_POLICY);
+    private Thread writer;
     public String username;
-    private ChatRoom room;
+    // volatile for delayed messages, which check them when they come due
+    private volatile ChatRoom room;
     private Session session;
+    private volatile State state = State.AUTH;
+    private volatile boolean binary;
+    private volatile boolean seqLines; // text client negotiated SEQ
+    // room messages up to this seq were replayed on (re)join; the room skips them when fanning out
+    private volatile long joinSeq;
+    private byte[] saidPrefix; // "<username>: " in UTF-8, prepended to binary SAY payloads
+    // messages handed to DELAYED and not yet run, and when the last of them comes due
+    private final AtomicInteger delayedPending = new AtomicInteger();
+    private long delayedDue;
+    // slow-consumer state; the level is set by SlowConsumerMonitor, which alone uses the rest
+    volatile SlowConsumerMonitor.Level lagLevel = SlowConsumerMonitor.Level.OK;
+    long lagLevelSince = System.nanoTime();
+    long seenTaken;
+    long progressAt = lagLevelSince; // a new client has made no progress yet, but has not stalled either
+    // room messages skipped while in DROP, reported as one GAP once delivery resumes
+    private long shedFrom, shedTo;
+    private volatile long shed;
 
     public ClientHandler(Socket s) throws IOException {
         this.sock = s;
-        this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        this.out = new PrintWriter(s.getOutputStream(), true);
+        this.transport = null;
+        this.in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        this.out = s.getOutputStream();
+    }
+
+    /** For non-blocking transports, which feed lines in and drain frames out themselves. */
+    public ClientHandler(Transport transport) {
+        this.sock = null;
+        this.transport = transport;
     }
 
+    /** Blocking mode: one virtual thread reads lines, another drains the outbound queue. */
     @Override
     public void run() {
-        boolean reconnecting = false;
+        writer = Thread.ofVirtual().name("writer-" + sock.getPort()).start(this::writeLoop);
         try {
-            out.println("Welcome to ChatServer.");
-            // AUTH / REGISTER / TOKEN
-            while (true) {
-                out.println("AUTH <user> <pw>  or  REGISTER <user> <pw>  or  TOKEN <token>");
-                String line = in.readLine();
-                if (line == null)
+            onConnect();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!onLine(line))
+                    return;
+                if (binary) {
+                    readFrames();
                     return;
-                String[] parts = line.split(" ", 2);
-                String cmd = parts[0].toUpperCase();
-
-                if ("TOKEN".equals(cmd)) {
-                    if (parts.length < 2) {
-                        out.println("INVALID_TOKEN");
-                        continue;
-                    }
-                    Session s = ChatServer.getSession(parts[1].trim());
-                    if (s == null) {
-                        out.println("INVALID_TOKEN");
-                        continue;
-                    }
-                    this.session = s;
-                    this.username = s.username;
-                    s.setHandler(this);
-                    out.println("RECONNECT_OK");
-                    reconnecting = true;
-                    break;
                 }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            onDisconnect();
+            // let queued replies (e.g. LOGOUT_OK) go out before the socket closes
+            try {
+                writer.join(WRITER_DRAIN_MS);
+            } catch (InterruptedException ignored) {
+            }
+            disconnect();
+        }
+    }
 
-                String[] tok = line.split(" ", 3);
-                if (tok.length < 3) {
-                    out.println("INVALID_COMMAND");
-                    continue;
-                }
-                String user = tok[1], pass = tok[2];
+    /** Blocking-mode read loop once binary framing has been negotiated. */
+    private void readFrames() throws IOException {
+        // nothing is buffered in "in": the client waits for BINARY_OK before framing
+        DataInputStream din = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        byte[] buf = new byte[256];
+        while (true) {
+            int n;
+            try {
+                n = din.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (n < BinaryProtocol.HEADER || n > MAX_FRAME)
+                throw new IOException("Bad frame length " + n);
+            if (n > buf.length)
+                buf = new byte[Math.max(n, buf.length * 2)];
+            din.readFully(buf, 0, n);
+            ByteBuffer f = ByteBuffer.wrap(buf, 0, n);
+            if (!onFrame(f.get(0), f.getInt(1), f.getLong(5), f.slice(BinaryProtocol.HEADER, n - BinaryProtocol.HEADER)))
+                return;
+        }
+    }
 
-                if ("AUTH".equalsIgnoreCase(tok[0])) {
-                    if (!ChatServer.authenticate(user, pass)) {
-                        out.println("AUTH_FAIL");
-                        continue;
-                    }
-                    if (ChatServer.isLoggedIn(user)) {
-                        out.println("ALREADY_LOGGED_IN");
-                        continue;
-                    }
-                } else if ("REGISTER".equalsIgnoreCase(tok[0])) {
-                    if (!ChatServer.registerUser(user, pass)) {
-                        out.println("EXISTS");
-                        continue;
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                    continue;
+    public void onConnect() {
+        sendMessage("Welcome to ChatServer.");
+        sendMessage(AUTH_PROMPT);
+    }
+
+    /**
+     * Handles one line of client input. Returns false when the connection
+     * should be closed once pending output has been written.
+     */
+    public boolean onLine(String line) {
+        return switch (state) {
+            case AUTH -> onAuthLine(line);
+            case LOBBY -> onLobbyLine(line.trim());
+            case ROOM -> onRoomLine(line.trim());
+        };
+    }
+
+    /** Cleanup on any exit; safe to call more than once. */
+    public void onDisconnect() {
+        if (room != null) {
+            room.removeClient(this);
+            room = null;
+        }
+        outbound.close();
+    }
+
+    // AUTH / REGISTER / TOKEN
+    private boolean onAuthLine(String line) {
+        if ("BINARY".equalsIgnoreCase(line.trim())) {
+            // the reply still goes out as text; everything after it is framed
+            sendMessage("BINARY_OK");
+            binary = true;
+            return true;
+        }
+        if ("SEQ".equalsIgnoreCase(line.trim())) {
+            // text clients that understand "MSG <seq>" lines and GAP ask for them
+            sendMessage("SEQ_OK");
+            seqLines = true;
+            return true;
+        }
+
+        String[] parts = line.split(" ", 2);
+        String cmd = parts[0].toUpperCase();
+
+        if ("TOKEN".equals(cmd)) {
+            // TOKEN <token> [<last seq seen>]
+            String[] args = parts.length < 2 ? new String[0] : parts[1].trim().split("\\s+");
+            long lastSeq = -1;
+            if (args.length > 1) {
+                try {
+                    lastSeq = Long.parseLong(args[1]);
+                } catch (NumberFormatException ignored) {
                 }
+            }
+            return resume(args.length < 1 ? null : args[0], lastSeq);
+        }
 
-                // success -> new session
-                this.username = user;
-                String tokn = ChatServer.createSession(user, this);
-                this.session = ChatServer.getSession(tokn);
-                out.println("AUTH_OK");
-                out.println("TOKEN " + tokn);
-                break;
+        String[] tok = line.split(" ", 3);
+        if (tok.length < 3) {
+            sendMessage("INVALID_COMMAND");
+            sendMessage(AUTH_PROMPT);
+            return true;
+        }
+        if ("AUTH".equalsIgnoreCase(tok[0]))
+            return login(false, tok[1], tok[2]);
+        if ("REGISTER".equalsIgnoreCase(tok[0]))
+            return login(true, tok[1], tok[2]);
+        sendMessage("INVALID_COMMAND");
+        sendMessage(AUTH_PROMPT);
+        return true;
+    }
+
+    private boolean resume(String token, long lastSeq) {
+        Session s = token == null ? null : ChatServer.getSession(token);
+        if (s == null) {
+            sendMessage("INVALID_TOKEN");
+            sendMessage(AUTH_PROMPT);
+            return true;
+        }
+        this.session = s;
+        setUsername(s.username);
+        s.setHandler(this);
+        sendMessage("RECONNECT_OK");
+        state = State.LOBBY;
+        // if we were in a room, re-join
+        if (s.roomName != null) {
+            room = ChatServer.getOrCreateRoom(s.roomName);
+            room.rejoin(this, lastSeq);
+            sendMessage("JOINED " + s.roomName);
+            state = State.ROOM;
+        }
+        return true;
+    }
+
+    private boolean login(boolean register, String user, String pass) {
+        long start = System.nanoTime();
+        String failure = null;
+        if (!register) {
+            if (!ChatServer.authenticate(user, pass))
+                failure = "AUTH_FAIL";
+            else if (ChatServer.isLoggedIn(user))
+                failure = "ALREADY_LOGGED_IN";
+        } else if (!UserStore.isValidUsername(user)) {
+            failure = "INVALID_USERNAME";
+        } else if (!UserStore.isValidPassword(pass)) {
+            failure = "INVALID_PASSWORD";
+        } else if (!ChatServer.registerUser(user, pass)) {
+            failure = "EXISTS";
+        }
+        if (failure != null) {
+            Metrics.authFailures.increment();
+            Metrics.authMicros.record((System.nanoTime() - start) / 1000);
+            sendMessage(failure);
+            sendMessage(AUTH_PROMPT);
+            return true;
+        }
+
+        // success -> new session
+        setUsername(user);
+        String tokn = ChatServer.createSession(user, this);
+        this.session = ChatServer.getSession(tokn);
+        sendMessage("AUTH_OK");
+        sendMessage("TOKEN " + tokn);
+        state = State.LOBBY;
+        Metrics.authMicros.record((System.nanoTime() - start) / 1000);
+        return true;
+    }
+
+    // Lobby / room-selection phase
+    private boolean onLobbyLine(String cmd) {
+        if ("LOGOUT".equalsIgnoreCase(cmd))
+            return logout();
+        if ("LIST".equalsIgnoreCase(cmd))
+            return listRooms();
+        if (cmd.regionMatches(true, 0, "LIST ", 0, 5))
+            return listPage(cmd.substring(5));
+        if (cmd.startsWith("/"))
+            return command(cmd.substring(1));
+        // join or create
+        if (!isValidRoomName(cmd)) {
+            sendMessage("INVALID_ROOM");
+            return true;
+        }
+        return joinRoom(ChatServer.getOrCreateRoom(cmd));
+    }
+
+    /**
+     * Names a room may have: not empty, not starting with the '/' of commands,
+     * and free of control characters, which would break the line protocol.
+     */
+    static boolean isValidRoomName(String name) {
+        if (name.isEmpty() || name.charAt(0) == '/')
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a UTF-8 chat line is free of control characters other than tab.
+     * A CR or LF from a binary client would otherwise reach text clients as a
+     * line of its own and could pass for a protocol line.
+     */
+    static boolean isValidMessage(byte[] body) {
+        for (byte b : body) {
+            if ((b >= 0 && b < 0x20 && b != '\t') || b == 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A "/" command from the lobby or a room, given without its slash. Room
+     * names cannot start with '/', and chat text that should only sends it doubled.
+     */
+    private boolean command(String line) {
+        String[] t = line.split(" ", 2);
+        if ("STATS".equalsIgnoreCase(t[0]))
+            return stats();
+        if ("CACHE".equalsIgnoreCase(t[0]) && state == State.ROOM)
+            return cache(t.length > 1 ? t[1].trim() : "");
+        sendMessage("INVALID_COMMAND");
+        return true;
+    }
+
+    private boolean listRooms() {
+        if (binary) {
+            for (ChatRoom r : ChatServer.getRooms())
+                sendFrame(BinaryProtocol.encode(BinaryProtocol.ROOM, r.getId(), 0, r.getName()));
+            sendFrame(BinaryProtocol.encode(BinaryProtocol.LIST_END, 0, 0, new byte[0]));
+            return true;
+        }
+        for (String r : ChatServer.getRoomNames())
+            sendMessage(r);
+        sendMessage(""); // blank line = end
+        return true;
+    }
+
+    /**
+     * LIST <prefix> <cursor> <limit>: one "ROOM <members> <AI|-> <name>" line
+     * per room, then "LIST_END <cursor>" to pass back for the next page ("-"
+     * once there is none). "-" also stands for an empty prefix or the first
+     * page. The prefix may contain spaces; cursors and limits never do.
+     */
+    private boolean listPage(String args) {
+        int j = args.lastIndexOf(' ');
+        int i = j > 0 ? args.lastIndexOf(' ', j - 1) : -1;
+        if (i < 0) {
+            sendMessage("INVALID_COMMAND");
+            return true;
+        }
+        String prefix = args.substring(0, i);
+        String cursor = args.substring(i + 1, j);
+        int limit;
+        try {
+            limit = Integer.parseInt(args.substring(j + 1));
+        } catch (NumberFormatException e) {
+            sendMessage("INVALID_COMMAND");
+            return true;
+        }
+        return listPage("-".equals(prefix) ? "" : prefix, "-".equals(cursor) ? "" : cursor, limit);
+    }
+
+    private boolean listPage(String prefix, String cursor, int limit) {
+        String after = null;
+        if (!cursor.isEmpty()) {
+            try {
+                after = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                sendMessage("INVALID_COMMAND");
+                return true;
             }
+        }
+        limit = limit <= 0 ? LIST_MAX_PAGE : Math.min(limit, LIST_MAX_PAGE);
+        // one extra tells whether another page follows
+        List<ChatRoom> page = ChatServer.listRooms(prefix, after, limit + 1);
+        boolean more = page.size() > limit;
+        if (more)
+            page = page.subList(0, limit);
+        for (ChatRoom r : page) {
+            String entry = r.getMemberCount() + " " + (r.isAIRoom() ? "AI" : "-") + " " + r.getName();
+            if (binary)
+                sendFrame(BinaryProtocol.encode(BinaryProtocol.ROOM_INFO, r.getId(), 0, entry));
+            else
+                sendMessage("ROOM " + entry);
+        }
+        String next = more
+                ? Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(page.get(page.size() - 1).getName().getBytes(StandardCharsets.UTF_8))
+                : "-";
+        if (binary)
+            sendFrame(BinaryProtocol.encode(BinaryProtocol.LIST_END, 0, 0, next));
+        else
+            sendMessage("LIST_END " + next);
+        return true;
+    }
+
+    /** Admin-only /STATS: metrics, one "name value" line each, ended by a blank line like LIST. */
+    private boolean stats() {
+        if (!Metrics.isAdmin(username)) {
+            sendMessage("FORBIDDEN");
+            return true;
+        }
+        for (String l : Metrics.report())
+            sendMessage(l);
+        sendMessage("");
+        return true;
+    }
+
+    /** Admin-only: /CACHE ON|OFF switches the LLM response cache for this AI room; anything else reports it. */
+    private boolean cache(String arg) {
+        if (!Metrics.isAdmin(username)) {
+            sendMessage("FORBIDDEN");
+            return true;
+        }
+        if (!room.isAIRoom()) {
+            sendMessage("NOT_AI_ROOM");
+            return true;
+        }
+        if ("ON".equalsIgnoreCase(arg) || "OFF".equalsIgnoreCase(arg)) {
+            // on a mirror the owner applies it a moment later, so answer with what was asked
+            room.setCachingReplies("ON".equalsIgnoreCase(arg));
+            sendMessage("CACHE " + arg.toUpperCase());
+            return true;
+        }
+        sendMessage("CACHE " + (room.isCachingReplies() ? "ON" : "OFF"));
+        return true;
+    }
+
+    private boolean joinRoom(ChatRoom r) {
+        room = r;
+        room.join(this);
+        session.roomName = r.getName();
+        sendMessage("JOINED " + r.getName());
+        state = State.ROOM;
+        return true;
+    }
+
+    // Chat phase
+    private boolean onRoomLine(String msg) {
+        if ("EXIT".equalsIgnoreCase(msg))
+            return exitRoom();
+        if ("LOGOUT".equalsIgnoreCase(msg))
+            return logout();
+        if ("LIST".equalsIgnoreCase(msg))
+            return true;
+        if (msg.startsWith("/") && !msg.startsWith("//"))
+            return command(msg.substring(1));
+        if (msg.startsWith("//"))
+            msg = msg.substring(1);
+        say((username + ": " + msg).getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
 
-            // If reconnecting && were in a room, re-join
-            if (reconnecting && session.roomName != null) {
-                room = ChatServer.getOrCreateRoom(session.roomName);
-                room.addClient(this);
-                out.println("JOINED " + session.roomName);
+    /**
+     * Posts a chat message once it fits the sender's and the room's budgets,
+     * plus in an AI room the sender's AI budget and, if the room answers each
+     * message on its own, the room's (one that batches charges the room per
+     * model turn instead). Under REJECT an over-budget message is
+     * refused and takes no tokens. Under DELAY it is posted when its tokens
+     * come due: the blocking reader sleeps, so the socket pushes back, while a
+     * non-blocking transport hands it to a timer, and queues behind it any
+     * message that follows before it is posted. Anything due later than
+     * chat.rate.maxDelayMs is refused either way. A held-back message is
+     * dropped if the sender has left the room by the time it comes due.
+     */
+    private void say(byte[] body) {
+        if (!isValidMessage(body)) {
+            sendMessage("INVALID_MESSAGE");
+            return;
+        }
+        ChatRoom r = room;
+        int n = !r.isAIRoom() ? 2 : ChatRoom.AI_BATCHES ? 3 : 4;
+        long now = System.nanoTime();
+        long wait = 0;
+        int limitedBy = -1;
+        for (int i = 0; i < n; i++) {
+            TokenBucket b = bucket(i, r);
+            long w = RATE_DELAY ? b.reserve(now) : b.tryAcquire(now);
+            if (w > wait) {
+                wait = w;
+                limitedBy = i;
+            }
+            if (w > 0 && !RATE_DELAY) {
+                n = i; // only the buckets before this one gave a token
+                break;
             }
+        }
+        if (transport != null && delayedPending.get() > 0 && delayedDue - now > wait) {
+            // may not overtake a held-back message; equal due times run in submission order
+            if (wait == 0) {
+                delay(r, body, delayedDue);
+                return;
+            }
+            wait = delayedDue - now;
+        }
+        if (wait == 0) {
+            r.userMessage(body, this);
+            return;
+        }
+        Metrics.rateLimitedBy[limitedBy].increment();
+        if (!RATE_DELAY || wait > RATE_MAX_DELAY_NANOS) {
+            for (int i = 0; i < n; i++)
+                bucket(i, r).refund();
+            Metrics.rateRejected.increment();
+            sendMessage("RATE_LIMITED " + Math.max(1, wait / 1_000_000));
+            return;
+        }
+        Metrics.rateDelayed.increment();
+        Metrics.rateDelayMicros.record(wait / 1000);
+        if (transport != null) {
+            delay(r, body, now + wait);
+            return;
+        }
+        try {
+            Thread.sleep(Duration.ofNanos(wait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        postIfStillIn(r, body);
+    }
 
-            // Main loop
-            while (true) {
-                // --- Lobby / room-selection phase ---
-                if (room == null) {
-                    String cmd = in.readLine();
-                    if (cmd == null)
-                        return;
-                    cmd = cmd.trim();
+    /** Non-blocking transports: posts {@code body} at nanoTime {@code due}; only the reader calls this. */
+    private void delay(ChatRoom r, byte[] body, long due) {
+        delayedDue = due;
+        delayedPending.incrementAndGet();
+        DELAYED.schedule(() -> {
+            try {
+                postIfStillIn(r, body);
+            } finally {
+                delayedPending.decrementAndGet();
+            }
+        }, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
 
-                    if ("LOGOUT".equalsIgnoreCase(cmd)) {
-                        ChatServer.removeSession(session);
-                        out.println("LOGOUT_OK");
-                        return;
-                    }
+    private void postIfStillIn(ChatRoom r, byte[] body) {
+        if (room == r && state == State.ROOM && !isClosed())
+            r.userMessage(body, this);
+    }
 
-                    if ("LIST".equalsIgnoreCase(cmd)) {
-                        for (String r : ChatServer.getRoomNames())
-                            out.println(r);
-                        out.println(); // blank line = end
-                        continue;
-                    }
-                    // join or create
-                    room = ChatServer.getOrCreateRoom(cmd);
-                    room.addClient(this);
-                    session.roomName = cmd;
-                    out.println("JOINED " + cmd);
-                }
+    private TokenBucket bucket(int i, ChatRoom r) {
+        return switch (i) {
+            case 0 -> session.messages;
+            case 1 -> r.messages;
+            case 2 -> session.aiTurns;
+            default -> r.aiTurns;
+        };
+    }
 
-                // --- Chat phase ---
-                String msg;
-                while ((msg = in.readLine()) != null) {
-                    msg = msg.trim();
-
-                    // exit room
-                    if ("EXIT".equalsIgnoreCase(msg)) {
-                        room.removeClient(this);
-                        session.roomName = null;
-                        room = null;
-                        break;
-                    }
+    private boolean exitRoom() {
+        room.removeClient(this);
+        shedFrom = 0;
+        session.roomName = null;
+        room = null;
+        state = State.LOBBY;
+        return true;
+    }
 
-                    // in-room logout
-                    if ("LOGOUT".equalsIgnoreCase(msg)) {
-                        room.removeClient(this);
-                        session.roomName = null;
-                        room = null;
-                        ChatServer.removeSession(session);
-                        out.println("LOGOUT_OK");
-                        return;
-                    }
+    private boolean logout() {
+        if (room != null) {
+            room.removeClient(this);
+            session.roomName = null;
+            room = null;
+        }
+        ChatServer.removeSession(session);
+        sendMessage("LOGOUT_OK");
+        return false;
+    }
 
-                    if ("LIST".equalsIgnoreCase(msg)) {
-                        continue;
+    /**
+     * Binary counterpart of {@link #onLine}: one frame, dispatched on its
+     * opcode. Chat text is copied straight from the payload into the broadcast
+     * body without being decoded.
+     */
+    public boolean onFrame(byte op, int roomId, long seq, ByteBuffer payload) {
+        switch (op) {
+            case BinaryProtocol.AUTH, BinaryProtocol.REGISTER -> {
+                int sep = indexOf(payload, (byte) 0);
+                if (state == State.AUTH && sep >= 0)
+                    return login(op == BinaryProtocol.REGISTER, BinaryProtocol.text(payload, 0, sep),
+                            BinaryProtocol.text(payload, sep + 1, payload.remaining()));
+            }
+            case BinaryProtocol.TOKEN -> {
+                if (state == State.AUTH)
+                    return resume(BinaryProtocol.text(payload), seq);
+            }
+            case BinaryProtocol.LIST -> {
+                if (state != State.AUTH) {
+                    // a payload of prefix '\0' cursor asks for one page of at most seq rooms
+                    int sep = indexOf(payload, (byte) 0);
+                    if (sep < 0)
+                        return listRooms();
+                    return listPage(BinaryProtocol.text(payload, 0, sep),
+                            BinaryProtocol.text(payload, sep + 1, payload.remaining()), (int) Math.min(seq, LIST_MAX_PAGE));
+                }
+            }
+            case BinaryProtocol.JOIN -> {
+                if (state == State.LOBBY) {
+                    String name = BinaryProtocol.text(payload);
+                    if (roomId == 0 && !isValidRoomName(name)) {
+                        sendMessage("INVALID_ROOM");
+                        return true;
                     }
-
-                    // broadcast
-                    room.userMessage(username + ": " + msg, this);
+                    ChatRoom r = roomId != 0 ? ChatServer.getRoom(roomId) : ChatServer.getOrCreateRoom(name);
+                    if (r != null)
+                        return joinRoom(r);
+                    sendMessage("NO_SUCH_ROOM");
+                    return true;
                 }
-
-                if (msg == null) {
-                    // client disconnected uncleanly
-                    return;
+            }
+            case BinaryProtocol.SAY -> {
+                if (state == State.ROOM) {
+                    byte[] body = Arrays.copyOf(saidPrefix, saidPrefix.length + payload.remaining());
+                    payload.get(payload.position(), body, saidPrefix.length, payload.remaining());
+                    say(body);
+                    return true;
                 }
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            // cleanup on any exit
-            if (room != null) {
-                room.removeClient(this);
+            case BinaryProtocol.EXIT -> {
+                if (state == State.ROOM)
+                    return exitRoom();
             }
-            try {
-                sock.close();
-            } catch (IOException ignored) {
+            case BinaryProtocol.LOGOUT -> {
+                if (state != State.AUTH)
+                    return logout();
+            }
+            case BinaryProtocol.STATS -> {
+                if (state != State.AUTH)
+                    return stats();
+            }
+            case BinaryProtocol.COMMAND -> {
+                if (state != State.AUTH)
+                    return command(BinaryProtocol.text(payload));
+            }
+            default -> {
             }
         }
+        sendMessage("INVALID_COMMAND");
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer b, byte v) {
+        for (int i = b.position(); i < b.limit(); i++)
+            if (b.get(i) == v)
+                return i - b.position();
+        return -1;
+    }
+
+    private void setUsername(String u) {
+        username = u;
+        saidPrefix = (u + ": ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean isBinary() {
+        return binary;
     }
 
     public String getUsername() {
         return username;
     }
 
+    /** Encodes a protocol line (text plus newline) as a shareable read-only UTF-8 frame. */
+    public static ByteBuffer encodeLine(String m) {
+        byte[] text = m.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[text.length + 1];
+        System.arraycopy(text, 0, frame, 0, text.length);
+        frame[text.length] = '\n';
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /** Inverse of {@link #encodeLine}; does not consume the buffer. */
+    public static String decodeLine(ByteBuffer frame) {
+        byte[] b = new byte[frame.remaining()];
+        frame.get(frame.position(), b);
+        int len = b.length > 0 && b[b.length - 1] == '\n' ? b.length - 1 : b.length;
+        return new String(b, 0, len, StandardCharsets.UTF_8);
+    }
+
     public void sendMessage(String m) {
-        out.println(m);
+        sendFrame(binary ? BinaryProtocol.encode(BinaryProtocol.STATUS, 0, 0, m) : encodeLine(m));
+    }
+
+    /**
+     * Sends a room message in whichever encoding this client negotiated, unless
+     * the client is too far behind to take more. Calls for one room are
+     * serialized by the room.
+     */
+    public void deliver(Broadcast b) {
+        if (lagLevel == SlowConsumerMonitor.Level.DROP) {
+            if (shedFrom == 0)
+                shedFrom = b.seq;
+            shedTo = b.seq;
+            shed++;
+            Metrics.slowShed.increment();
+            return;
+        }
+        if (shedFrom != 0) {
+            sendGap(shedFrom, shedTo);
+            shedFrom = 0;
+        }
+        sendFrame(binary ? b.binaryFrame() : seqLines ? b.textFrame() : b.plainFrame());
+    }
+
+    /** Reports skipped room messages to clients that know sequence numbers; others can't resume by seq anyway. */
+    public void sendGap(long from, long to) {
+        if (binary || seqLines)
+            sendMessage("GAP " + from + " " + to);
+    }
+
+    long getJoinSeq() {
+        return joinSeq;
+    }
+
+    void setJoinSeq(long s) {
+        joinSeq = s;
+    }
+
+    /** Sends one logged line (text plus newline, e.g. a slice of a mapped log segment). */
+    public void sendHistory(ByteBuffer line) {
+        if (!binary) {
+            sendFrame(line);
+            return;
+        }
+        int n = line.remaining();
+        if (n > 0 && line.get(line.position() + n - 1) == '\n')
+            n--;
+        byte[] b = new byte[n];
+        line.get(line.position(), b);
+        sendFrame(BinaryProtocol.encode(BinaryProtocol.HISTORY, room != null ? room.getId() : 0, 0, b));
+    }
+
+    /**
+     * Queues an already-encoded frame. The buffer may be shared with other
+     * recipients; it is only ever read with absolute gets, never consumed.
+     */
+    public void sendFrame(ByteBuffer frame) {
+        if (!outbound.offer(frame)) {
+            System.err.println("Outbound queue full for " + username + ", disconnecting");
+            disconnect();
+        } else if (transport != null) {
+            transport.framesQueued();
+        }
+    }
+
+    /** Next queued frame for a non-blocking transport, or null if none is pending. */
+    public ByteBuffer pollFrame() {
+        return outbound.poll();
+    }
+
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    public int getPeakQueueDepth() {
+        return outbound.peakDepth();
+    }
+
+    public long getDroppedCount() {
+        return outbound.droppedCount();
+    }
+
+    public long getQueuedBytes() {
+        return outbound.queuedBytes();
+    }
+
+    public long getTakenCount() {
+        return outbound.takenCount();
+    }
+
+    /** Room messages skipped because this client was too far behind. */
+    public long getShedCount() {
+        return shed;
+    }
+
+    public boolean isClosed() {
+        return outbound.isClosed();
+    }
+
+    /** Drops the connection but keeps the Session, so the client can resume with TOKEN. */
+    void evict() {
+        if (transport != null) {
+            outbound.close();
+            transport.reset();
+            return;
+        }
+        // with a zero linger, close() does not wait for the record lock a writer stuck on this peer holds
+        try {
+            sock.setSoLinger(true, 0);
+        } catch (IOException ignored) {
+        }
+        disconnect();
+    }
+
+    /**
+     * Drains the queue, packing frames that are already waiting into one write
+     * (one TLS record) of up to COALESCE_BYTES. A lone frame on an idle
+     * connection is written at once; only after a round that found a backlog
+     * does the writer linger briefly for more before a partial write.
+     */
+    private void writeLoop() {
+        byte[] batch = new byte[COALESCE_BYTES];
+        byte[] scratch = new byte[WRITE_CHUNK];
+        boolean busy = false;
+        try {
+            ByteBuffer frame;
+            while ((frame = outbound.take()) != null) {
+                int len = 0, frames = 0, round = 0;
+                boolean lingered = false;
+                while (frame != null) {
+                    int n = frame.remaining();
+                    if (len > 0 && len + n > batch.length) {
+                        out.write(batch, 0, len);
+                        recordWrite(1, frames);
+                        len = 0;
+                        frames = 0;
+                        lingered = false;
+                    }
+                    if (n > batch.length) {
+                        writeFrame(frame, scratch, out);
+                        recordWrite((n + WRITE_CHUNK - 1) / WRITE_CHUNK, 1);
+                    } else {
+                        frame.get(frame.position(), batch, len, n);
+                        len += n;
+                        frames++;
+                    }
+                    round++;
+                    frame = outbound.poll();
+                    if (frame == null && busy && len > 0 && !lingered && LINGER_NANOS > 0) {
+                        lingered = true;
+                        frame = outbound.poll(LINGER_NANOS);
+                    }
+                }
+                if (len > 0) {
+                    out.write(batch, 0, len);
+                    recordWrite(1, frames);
+                }
+                busy = round > 1;
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    static void recordWrite(int records, int frames) {
+        recordsWritten.add(records);
+        framesWritten.add(frames);
+    }
+
+    /** TLS records written carrying queued frames, across all connections. */
+    public static long getRecordsWritten() {
+        return recordsWritten.sum();
+    }
+
+    public static long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    static void writeFrame(ByteBuffer frame, byte[] scratch, OutputStream os) throws IOException {
+        int pos = frame.position();
+        int end = frame.limit();
+        while (pos < end) {
+            int n = Math.min(scratch.length, end - pos);
+            frame.get(pos, scratch, 0, n);
+            os.write(scratch, 0, n);
+            pos += n;
+        }
+    }
+
+    private void disconnect() {
+        outbound.close();
+        if (transport != null) {
+            transport.close();
+            return;
+        }
+        // closing a TLS socket may block on a stuck peer, so never do it inline
+        Thread.startVirtualThread(() -> {
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        });
     }
 }
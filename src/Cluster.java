@@ -0,0 +1,480 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.*;
+
+/**
+ * Cluster mode: several ChatServer nodes that share the room namespace.
+ * Every room is owned by one node, picked by consistent hashing of its name
+ * (see {@link HashRing}); the owner sequences, logs and broadcasts its
+ * messages and runs its AI turns. Any node accepts clients for any room: the
+ * others keep a mirror room holding their own members, forward what those
+ * members say to the owner, and receive the owner's sequenced broadcasts.
+ *
+ * Nodes talk over persistent TLS links, one outgoing link per peer carrying
+ * length-prefixed frames from a bounded queue. A link opens with a HELLO
+ * signed with the shared secret. Session tokens are signed with the same
+ * secret, so every node honours them. Registrations and the names of owned
+ * rooms are copied to every node as they happen, and again to a peer whenever
+ * a link to it comes up, so any node can log a user in or list any room.
+ * Two nodes registering the same name at once are settled by the name's own
+ * node on the ring, whose choice every node then adopts.
+ *
+ * Enabled by chat.cluster.self and chat.cluster.nodes (cluster addresses,
+ * host:port, the same list on every node) plus chat.cluster.secret.
+ */
+public final class Cluster {
+    static final byte HELLO = 0;
+    static final byte SUB = 1; // mirror -> owner: start sending this room's messages, replaying those after seq (if >= 0)
+    static final byte UNSUB = 2;
+    static final byte SAY = 3; // mirror -> owner: a member's chat message
+    static final byte POST = 4; // mirror -> owner: an unlogged notice, e.g. a member entering
+    static final byte MSG = 5; // owner -> mirror: a sequenced room message
+    static final byte REVOKE = 6; // a logged-out token, in place of the room name
+    static final byte GAP = 7; // owner -> mirror: messages seq..body (a long) are gone
+    static final byte CACHE = 8; // reply caching of an AI room, seq 1 = on: mirror -> owner to set, owner -> mirror to report
+    static final byte USER = 9; // a registration, the user name in place of the room and the password as body; seq 1 = settled
+    static final byte ROOM = 10; // owner -> all: a room it owns exists
+    static final byte LOGGED = 11; // owner -> mirror: a MSG that also goes into the join replay
+    static final byte LOG = 12; // owner -> mirror: a line for the join replay only
+    static final byte HISTORY = 13; // owner -> mirror, answering SUB: the join replay (see ChatRoom.sendHistory)
+
+    private static final String SELF = System.getProperty("chat.cluster.self");
+    private static final List<String> NODES = parseNodes(System.getProperty("chat.cluster.nodes", ""));
+    private static final int VNODES = Integer.getInteger("chat.cluster.vnodes", 128);
+    private static final int LINK_CAPACITY = Integer.getInteger("chat.cluster.linkCapacity", 65536);
+    private static final long RECONNECT_MS = Long.getLong("chat.cluster.reconnectMs", 1000);
+    private static final byte[] SECRET = System.getProperty("chat.cluster.secret", "").getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_LINK_FRAME = 1 << 20;
+    // largest body that leaves room in a frame for the header and any room name
+    static final int MAX_BODY = MAX_LINK_FRAME / 2;
+    private static final long HELLO_MAX_AGE_MS = 60_000;
+    private static final byte[] EMPTY = new byte[0];
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // sent in HELLO, so peers can tell a restart from a reconnect
+    private static final long BOOT = RANDOM.nextLong();
+    // queued on a link to make it reconnect before sending what follows
+    private static final ByteBuffer RECONNECT = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private static final HashRing RING = isEnabled() ? new HashRing(NODES, VNODES) : null;
+    private static final Map<String, Link> links = new ConcurrentHashMap<>();
+    private static final Map<String, Long> peerBoots = new ConcurrentHashMap<>();
+    // logged-out tokens -> their expiry (epoch ms), so no node adopts them again
+    private static final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>();
+
+    private Cluster() {
+    }
+
+    private static List<String> parseNodes(String s) {
+        List<String> out = new ArrayList<>();
+        for (String n : s.split("\\s*,\\s*"))
+            if (!n.isEmpty())
+                out.add(n);
+        return List.copyOf(out);
+    }
+
+    public static boolean isEnabled() {
+        return SELF != null && !NODES.isEmpty();
+    }
+
+    public static String self() {
+        return SELF;
+    }
+
+    public static int size() {
+        return NODES.size();
+    }
+
+    /** The node that owns {@code room}, or null if this node does (or clustering is off). */
+    public static String ownerOf(String room) {
+        if (RING == null)
+            return null;
+        String n = RING.owner(room);
+        return SELF.equals(n) ? null : n;
+    }
+
+    /** Listens for peers on this node's cluster port and starts a link to every other node. */
+    public static void start(SSLContext serverCtx, KeyStore trust) throws IOException, GeneralSecurityException {
+        if (SECRET.length == 0)
+            throw new IllegalStateException("chat.cluster.secret must be set in cluster mode");
+        if (!NODES.contains(SELF))
+            throw new IllegalStateException("chat.cluster.self " + SELF + " is not in chat.cluster.nodes");
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(trust);
+        SSLContext clientCtx = SSLContext.getInstance("TLS");
+        clientCtx.init(null, tmf.getTrustManagers(), null);
+
+        SSLServerSocket serv = (SSLServerSocket) serverCtx.getServerSocketFactory().createServerSocket(port(SELF));
+        Thread.ofVirtual().name("cluster-accept").start(() -> {
+            while (true) {
+                try {
+                    SSLSocket s = (SSLSocket) serv.accept();
+                    Thread.startVirtualThread(() -> serveLink(s));
+                } catch (IOException e) {
+                    System.err.println("Cluster accept failed: " + e);
+                    return;
+                }
+            }
+        });
+        for (String n : NODES)
+            if (!n.equals(SELF))
+                links.put(n, new Link(n, clientCtx.getSocketFactory()));
+        System.out.println("Cluster node " + SELF + " of " + NODES.size() + " (" + VNODES + " points each)");
+    }
+
+    private static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    private static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /** Queues a frame for {@code node}; never blocks. */
+    static void send(String node, ByteBuffer frame) {
+        Link l = links.get(node);
+        if (l != null)
+            l.queue.offer(frame);
+    }
+
+    static void send(String node, byte op, String room, long seq, byte[] body) {
+        send(node, frame(op, room, seq, body));
+    }
+
+    static byte[] longBytes(long v) {
+        return ByteBuffer.allocate(8).putLong(v).array();
+    }
+
+    /** [len][op][room length][room UTF-8][seq][body]; shared read-only by every link it is queued on. */
+    static ByteBuffer frame(byte op, String room, long seq, byte[] body) {
+        byte[] r = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + 2 + r.length + 8 + body.length);
+        b.putInt(b.capacity() - 4).put(op).putShort((short) r.length).put(r).putLong(seq).put(body).flip();
+        return b.asReadOnlyBuffer();
+    }
+
+    /** One peer's outgoing link: reconnects with a fixed backoff and resubscribes the mirrors it serves. */
+    private static final class Link {
+        final String node;
+        final SSLSocketFactory factory;
+        final OutboundQueue queue = new OutboundQueue(LINK_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        volatile boolean up;
+
+        Link(String node, SSLSocketFactory factory) {
+            this.node = node;
+            this.factory = factory;
+            Thread.ofVirtual().name("cluster-link-" + node).start(this::run);
+        }
+
+        private void run() {
+            byte[] scratch = new byte[16 * 1024];
+            while (true) {
+                try (SSLSocket s = (SSLSocket) factory.createSocket(host(node), port(node))) {
+                    s.setTcpNoDelay(true);
+                    s.startHandshake();
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+                    long now = System.currentTimeMillis();
+                    byte[] hello = ByteBuffer.allocate(8 + 32).putLong(BOOT).put(hmac(SELF + "|" + now + "|" + BOOT)).array();
+                    ClientHandler.writeFrame(frame(HELLO, SELF, now, hello), scratch, out);
+                    // the peer may be new or have missed these while it was down; repeats are harmless
+                    for (ChatRoom r : ChatServer.getRooms())
+                        if (!r.isRemote())
+                            ClientHandler.writeFrame(frame(ROOM, r.getName(), 0, EMPTY), scratch, out);
+                    for (var u : ChatServer.getUserStore().entries())
+                        if (SELF.equals(RING.owner(u.getKey())))
+                            ClientHandler.writeFrame(frame(USER, u.getKey(), 1,
+                                    u.getValue().getBytes(StandardCharsets.UTF_8)), scratch, out);
+                    // the owner may have restarted and forgotten who was listening
+                    // frames sent just before the old link broke may be lost; replays it has are ignored
+                    for (ChatRoom r : ChatServer.getRooms())
+                        if (node.equals(r.getOwner()) && r.getMemberCount() > 0)
+                            ClientHandler.writeFrame(r.subscribeFrame(r.getLastSeq()), scratch, out);
+                    out.flush();
+                    up = true;
+                    System.out.println("Cluster link to " + node + " up");
+                    ByteBuffer f;
+                    while ((f = queue.take()) != null) {
+                        do {
+                            if (f == RECONNECT)
+                                throw new IOException(node + " restarted");
+                            ClientHandler.writeFrame(f, scratch, out);
+                            Metrics.clusterSent.increment();
+                        } while ((f = queue.poll()) != null);
+                        out.flush();
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (up)
+                        System.err.println("Cluster link to " + node + " lost: " + e.getMessage());
+                    up = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A new incoming link from {@code peer}: it resubscribes the rooms it has
+     * members in right after HELLO, so it is dropped from all others here. If
+     * it restarted, our link to it is stale and reconnects.
+     */
+    private static void peerConnected(String peer, long boot) {
+        for (ChatRoom r : ChatServer.getRooms())
+            if (!r.isRemote())
+                r.removePeer(peer);
+        Long prev = peerBoots.put(peer, boot);
+        Link l = links.get(peer);
+        if (prev != null && prev != boot && l != null && l.up)
+            l.queue.offer(RECONNECT);
+    }
+
+    /** Reads one peer's incoming link, after checking its HELLO. */
+    private static void serveLink(SSLSocket s) {
+        String peer = null;
+        try (s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 16 * 1024));
+            byte[] buf = new byte[256];
+            while (true) {
+                int n;
+                try {
+                    n = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (n < 11 || n > MAX_LINK_FRAME)
+                    throw new IOException("Bad cluster frame length " + n);
+                if (n > buf.length)
+                    buf = new byte[Math.max(n, buf.length * 2)];
+                in.readFully(buf, 0, n);
+                ByteBuffer f = ByteBuffer.wrap(buf, 0, n);
+                byte op = f.get();
+                int rl = f.getShort() & 0xFFFF;
+                String room = new String(buf, 3, rl, StandardCharsets.UTF_8);
+                long seq = f.getLong(3 + rl);
+                byte[] body = Arrays.copyOfRange(buf, 11 + rl, n);
+                if (peer == null) {
+                    if (op != HELLO || !validHello(room, seq, body)) {
+                        System.err.println("Rejected cluster link from " + s.getRemoteSocketAddress());
+                        return;
+                    }
+                    peer = room;
+                    peerConnected(peer, ByteBuffer.wrap(body).getLong());
+                    continue;
+                }
+                Metrics.clusterReceived.increment();
+                dispatch(peer, op, room, seq, body);
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster link from " + (peer != null ? peer : s.getRemoteSocketAddress()) + " failed: "
+                    + e.getMessage());
+        }
+    }
+
+    /** {@code body}: the sender's boot id, then the HMAC over node, time and boot id. */
+    private static boolean validHello(String node, long sentAt, byte[] body) {
+        if (body.length < 8)
+            return false;
+        long boot = ByteBuffer.wrap(body).getLong();
+        return NODES.contains(node) && Math.abs(System.currentTimeMillis() - sentAt) < HELLO_MAX_AGE_MS
+                && MessageDigest.isEqual(Arrays.copyOfRange(body, 8, body.length), hmac(node + "|" + sentAt + "|" + boot));
+    }
+
+    private static void dispatch(String peer, byte op, String room, long seq, byte[] body) {
+        if (op == REVOKE) {
+            revokeLocally(room);
+            return;
+        }
+        if (op == USER) {
+            userRegistered(room, new String(body, StandardCharsets.UTF_8), seq != 0);
+            return;
+        }
+        ChatRoom r = ChatServer.getOrCreateRoom(room);
+        if (op == ROOM)
+            return;
+        if (op == CACHE) {
+            if (r.isAIRoom())
+                r.cachingSetRemotely(seq != 0);
+            return;
+        }
+        if (op == MSG || op == LOGGED || op == GAP || op == LOG || op == HISTORY) {
+            if (!r.isRemote())
+                return;
+            switch (op) {
+                case MSG, LOGGED -> r.remoteBroadcast(seq, body, op == LOGGED);
+                case LOG -> r.remoteLogged(body);
+                case HISTORY -> remoteHistory(r, seq, body);
+                default -> {
+                    if (body.length == 8)
+                        r.remoteGap(seq, ByteBuffer.wrap(body).getLong());
+                }
+            }
+            return;
+        }
+        if (r.isRemote()) {
+            // the nodes disagree about the ring; forwarding on could loop
+            System.err.println("Cluster: " + peer + " sent op " + op + " for " + room + ", owned by " + r.getOwner());
+            return;
+        }
+        switch (op) {
+            case SUB -> r.addPeer(peer, seq, body.length >= 8 ? ByteBuffer.wrap(body).getLong() : 0);
+            case UNSUB -> r.removePeer(peer);
+            case SAY -> r.userMessage(body, null);
+            case POST -> r.post(body);
+            default -> System.err.println("Cluster: unknown op " + op + " from " + peer);
+        }
+    }
+
+    private static void remoteHistory(ChatRoom r, long ownerSeq, byte[] body) {
+        if (body.length < 8)
+            return;
+        ByteBuffer b = ByteBuffer.wrap(body);
+        long subscription = b.getLong();
+        List<ByteBuffer> lines = new ArrayList<>();
+        while (b.remaining() >= 4) {
+            int n = b.getInt();
+            if (n < 0 || n > b.remaining())
+                break;
+            lines.add(b.slice(b.position(), n).asReadOnlyBuffer());
+            b.position(b.position() + n);
+        }
+        r.remoteHistory(subscription, ownerSeq, lines);
+    }
+
+    // Users
+
+    /** Copies a registration made on this node to every other node. */
+    public static void userRegistered(String user, String password) {
+        ByteBuffer f = frame(USER, user, 0, password.getBytes(StandardCharsets.UTF_8));
+        for (String n : links.keySet())
+            send(n, f);
+    }
+
+    /**
+     * A registration from a peer. A settled one replaces ours. Otherwise a
+     * name we already hold under another password is a race, which the name's
+     * node settles by sending every node the password it holds.
+     */
+    private static void userRegistered(String user, String password, boolean settled) {
+        UserStore users = ChatServer.getUserStore();
+        if (settled) {
+            users.replace(user, password);
+            return;
+        }
+        if (users.register(user, password) || !SELF.equals(RING.owner(user)))
+            return;
+        String ours = users.passwordOf(user);
+        if (ours != null && !ours.equals(password)) {
+            ByteBuffer f = frame(USER, user, 1, ours.getBytes(StandardCharsets.UTF_8));
+            for (String n : links.keySet())
+                send(n, f);
+        }
+    }
+
+    /** Tells every other node about a room this node owns, so their LIST shows it. */
+    static void roomCreated(String room) {
+        ByteBuffer f = frame(ROOM, room, 0, EMPTY);
+        for (String n : links.keySet())
+            send(n, f);
+    }
+
+    public static int getLinksUp() {
+        int n = 0;
+        for (Link l : links.values())
+            if (l.up)
+                n++;
+        return n;
+    }
+
+    /** Frames dropped because a peer's link queue overflowed while it was down or slow. */
+    public static long getDropped() {
+        long n = 0;
+        for (Link l : links.values())
+            n += l.queue.droppedCount();
+        return n;
+    }
+
+    // Session tokens
+
+    public record TokenClaims(String user, String node, long expiresAtMillis) {
+    }
+
+    /** base64url(user).base64url(node).expiry.nonce.base64url(HMAC-SHA256 of the first four parts) */
+    public static String issueToken(String user, long expiresAtMillis) {
+        byte[] nonce = new byte[12];
+        RANDOM.nextBytes(nonce);
+        String claims = B64.encodeToString(user.getBytes(StandardCharsets.UTF_8)) + "."
+                + B64.encodeToString(SELF.getBytes(StandardCharsets.UTF_8)) + "." + expiresAtMillis + "."
+                + B64.encodeToString(nonce);
+        return claims + "." + B64.encodeToString(hmac(claims));
+    }
+
+    /** The claims of a token signed by any node, or null if it is forged, expired or logged out. */
+    public static TokenClaims verifyToken(String token) {
+        int sig = token.lastIndexOf('.');
+        if (sig < 0 || revoked.containsKey(token))
+            return null;
+        String claims = token.substring(0, sig);
+        byte[] mac;
+        try {
+            mac = Base64.getUrlDecoder().decode(token.substring(sig + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(mac, hmac(claims)))
+            return null;
+        String[] p = claims.split("\\.");
+        if (p.length != 4)
+            return null;
+        long expires = Long.parseLong(p[2]); // signed, so well-formed
+        if (expires <= System.currentTimeMillis())
+            return null;
+        Base64.Decoder d = Base64.getUrlDecoder();
+        return new TokenClaims(new String(d.decode(p[0]), StandardCharsets.UTF_8),
+                new String(d.decode(p[1]), StandardCharsets.UTF_8), expires);
+    }
+
+    /** Logs a token out on every node. */
+    public static void revoke(String token) {
+        revokeLocally(token);
+        ByteBuffer f = frame(REVOKE, token, 0, EMPTY);
+        for (String n : links.keySet())
+            send(n, f);
+    }
+
+    private static void revokeLocally(String token) {
+        TokenClaims c = verifyToken(token);
+        if (c == null)
+            return;
+        long now = System.currentTimeMillis();
+        if (revoked.size() > 1024)
+            revoked.values().removeIf(exp -> exp <= now);
+        revoked.put(token, c.expiresAtMillis());
+        ChatServer.dropSession(token);
+    }
+
+    private static byte[] hmac(String s) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+            return mac.doFinal(s.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
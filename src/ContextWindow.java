@@ -0,0 +1,65 @@
+import java.util.*;
+
+/**
+ * Bounded conversation context for an AI room. Keeps the most recent turns
+ * that fit in an approximate token budget; older turns are either dropped or,
+ * when summarization is enabled, handed out to be folded into a running
+ * summary that is sent ahead of the remaining turns.
+ *
+ * Not thread-safe: callers hold the owning room's lock.
+ */
+public class ContextWindow {
+    private final int tokenBudget;
+    private final boolean summarize;
+    private final ArrayDeque<Message> turns = new ArrayDeque<>();
+    private final List<Message> evicted = new ArrayList<>();
+    private Message summary;
+    private int tokens;
+
+    public ContextWindow(int tokenBudget, boolean summarize) {
+        this.tokenBudget = tokenBudget;
+        this.summarize = summarize;
+    }
+
+    public void add(Message m) {
+        turns.addLast(m);
+        tokens += m.estimateTokens();
+        trim();
+    }
+
+    private void trim() {
+        int limit = tokenBudget - (summary != null ? summary.estimateTokens() : 0);
+        // always keep the latest turn, even if it alone exceeds the budget
+        while (tokens > limit && turns.size() > 1) {
+            Message old = turns.pollFirst();
+            tokens -= old.estimateTokens();
+            if (summarize)
+                evicted.add(old);
+        }
+    }
+
+    /** Messages to send to the model: the summary (if any) followed by the retained turns. */
+    public List<Message> snapshot() {
+        List<Message> out = new ArrayList<>(turns.size() + 1);
+        if (summary != null)
+            out.add(summary);
+        out.addAll(turns);
+        return out;
+    }
+
+    /** Removes and returns turns that fell out of the window since the last call. */
+    public List<Message> drainEvicted() {
+        List<Message> out = List.copyOf(evicted);
+        evicted.clear();
+        return out;
+    }
+
+    public Message getSummary() {
+        return summary;
+    }
+
+    public void setSummary(String text) {
+        summary = new Message("system", "Summary of the earlier conversation: " + text);
+        trim();
+    }
+}
@@ -0,0 +1,37 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent hashing of keys (room names) onto nodes. Each node is placed at
+ * {@code vnodes} points on a 64-bit ring; a key belongs to the first node at
+ * or after its own hash. Adding or removing a node only moves the keys that
+ * land on its points, about 1/N of them.
+ */
+public final class HashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int vnodes) {
+        for (String n : nodes)
+            for (int i = 0; i < vnodes; i++)
+                ring.put(hash(n + "#" + i), n);
+    }
+
+    public String owner(String key) {
+        if (ring.isEmpty())
+            return null;
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(d).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative values (HDR-style): each
+ * power of two is split into 16 linear sub-buckets, so any recorded value is
+ * reported within about 6% of its true value. Recording is two atomic adds.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40; // values are clamped to 2^40 (12 days in micros)
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long v) {
+        if (v < 0)
+            v = 0;
+        counts.incrementAndGet(index(Math.min(v, (1L << MAX_EXP) - 1)));
+        total.increment();
+        sum.add(v);
+        if (v > max.get())
+            max.accumulateAndGet(v, Math::max);
+    }
+
+    private static int index(long v) {
+        if (v < SUB)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /** Smallest value that maps to bucket {@code i}. */
+    private static long lowerBound(int i) {
+        if (i < SUB)
+            return i;
+        int exp = i / SUB + SUB_BITS - 1;
+        return (long) (SUB + i % SUB) << (exp - SUB_BITS);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Value at quantile {@code q} (0..1), as the lower bound of its bucket. */
+    public long percentile(double q) {
+        long n = 0;
+        long[] c = new long[counts.length()];
+        for (int i = 0; i < c.length; i++)
+            n += c[i] = counts.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < c.length; i++) {
+            seen += c[i];
+            if (seen >= rank)
+                return Math.min(lowerBound(i), max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull reader for Ollama /api/chat responses that decodes straight from the
+ * response byte stream. Each {@link #next()} consumes one top-level object
+ * (the whole body, or one NDJSON line when streaming) and keeps only
+ * {@code message.content}, {@code done} and {@code error}. Other fields are
+ * skipped structurally, without being turned into Strings.
+ */
+public final class JsonReader {
+    private static final int TOP = 0;
+    private static final int MESSAGE = 1;
+    private static final byte[][] KEYS = { "message".getBytes(StandardCharsets.US_ASCII),
+            "content".getBytes(StandardCharsets.US_ASCII), "done".getBytes(StandardCharsets.US_ASCII),
+            "error".getBytes(StandardCharsets.US_ASCII) };
+    private static final int MESSAGE_KEY = 0;
+    private static final int CONTENT_KEY = 1;
+    private static final int DONE_KEY = 2;
+    private static final int ERROR_KEY = 3;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[2048];
+    private int pos;
+    private int lim;
+    private final StringBuilder content = new StringBuilder();
+    private final StringBuilder key = new StringBuilder();
+    private final char[] chars = new char[256];
+    private boolean hasContent;
+    private boolean done;
+    private String error;
+
+    public JsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Reads the next top-level object; false at end of input. */
+    public boolean next() throws IOException {
+        int c = skipWs();
+        if (c < 0)
+            return false;
+        if (c != '{')
+            throw malformed("expected an object");
+        content.setLength(0);
+        hasContent = false;
+        done = false;
+        error = null;
+        readObject(TOP);
+        return true;
+    }
+
+    /** {@code message.content} of the last object, or null if it had none. */
+    public String content() {
+        return hasContent ? content.toString() : null;
+    }
+
+    public boolean done() {
+        return done;
+    }
+
+    /** The {@code error} field Ollama sends instead of a message, if any. */
+    public String error() {
+        return error;
+    }
+
+    /** Reads and discards the rest of the stream so the connection can be reused. */
+    public void drain() throws IOException {
+        pos = lim;
+        while (in.read(buf) >= 0)
+            ;
+    }
+
+    private void readObject(int level) throws IOException {
+        int c = skipWs();
+        if (c == '}')
+            return;
+        while (true) {
+            if (c != '"')
+                throw malformed("expected a key");
+            int k = readKey();
+            if (skipWs() != ':')
+                throw malformed("expected ':'");
+            c = skipWs();
+            if (level == TOP && c == '{' && k == MESSAGE_KEY) {
+                readObject(MESSAGE);
+            } else if (level == MESSAGE && c == '"' && k == CONTENT_KEY) {
+                readString(content);
+                hasContent = true;
+            } else if (level == TOP && c == 't' && k == DONE_KEY) {
+                skipValue(c);
+                done = true;
+            } else if (level == TOP && c == '"' && k == ERROR_KEY) {
+                StringBuilder e = new StringBuilder();
+                readString(e);
+                error = e.toString();
+            } else {
+                skipValue(c);
+            }
+            c = skipWs();
+            if (c == '}')
+                return;
+            if (c != ',')
+                throw malformed("expected ',' or '}'");
+            c = skipWs();
+        }
+    }
+
+    /** Reads a key (opening quote already read) and returns the index of the field it names, or -1. */
+    private int readKey() throws IOException {
+        // usual case: a short unescaped key already in the buffer, compared as bytes
+        for (int p = pos; p < lim; p++) {
+            byte b = buf[p];
+            if (b == '\\')
+                break;
+            if (b == '"') {
+                int k = -1;
+                for (int i = 0; i < KEYS.length && k < 0; i++)
+                    if (Arrays.equals(buf, pos, p, KEYS[i], 0, KEYS[i].length))
+                        k = i;
+                pos = p + 1;
+                return k;
+            }
+        }
+        key.setLength(0);
+        readString(key);
+        for (int i = 0; i < KEYS.length; i++)
+            if (new String(KEYS[i], StandardCharsets.US_ASCII).contentEquals(key))
+                return i;
+        return -1;
+    }
+
+    /** Skips one value whose first byte {@code c} has already been read. */
+    private void skipValue(int c) throws IOException {
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c < 0)
+                    throw malformed("truncated");
+                if (c == '"')
+                    skipString();
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+            }
+        } else {
+            // number or literal: runs up to the next delimiter, which is left unread
+            while (true) {
+                c = peek();
+                if (c < 0 || c == ',' || c == '}' || c == ']' || c <= ' ')
+                    return;
+                pos++;
+            }
+        }
+    }
+
+    /** Skips a string body (opening quote already read) without decoding it. */
+    private void skipString() throws IOException {
+        while (true) {
+            if (pos == lim && fill() < 0)
+                throw malformed("unterminated string");
+            byte b = buf[pos++];
+            if (b == '"')
+                return;
+            if (b == '\\')
+                read(); // the escaped char; hex digits of a unicode escape are never a quote
+        }
+    }
+
+    /** Decodes a string body (opening quote already read) into {@code out}. */
+    private void readString(StringBuilder out) throws IOException {
+        char[] cs = chars;
+        int n = 0;
+        while (true) {
+            if (pos == lim && fill() < 0)
+                throw malformed("unterminated string");
+            // plain ASCII runs are copied without per-byte bounds or refill checks
+            byte[] b = buf;
+            int p = pos;
+            int l = lim;
+            while (p < l) {
+                int c = b[p];
+                if (c == '"' || c == '\\' || c < 0)
+                    break;
+                if (n == cs.length) {
+                    out.append(cs, 0, n);
+                    n = 0;
+                }
+                cs[n++] = (char) c;
+                p++;
+            }
+            pos = p;
+            if (p == l)
+                continue;
+            if (n > cs.length - 2) { // room for a surrogate pair
+                out.append(cs, 0, n);
+                n = 0;
+            }
+            int c = b[pos++];
+            if (c == '"')
+                break;
+            if (c == '\\') {
+                int e = read();
+                cs[n++] = switch (e) {
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case 't' -> '\t';
+                    case 'b' -> '\b';
+                    case 'f' -> '\f';
+                    // an escaped surrogate pair arrives as two chars, as Java stores it
+                    case 'u' -> (char) (hex() << 12 | hex() << 8 | hex() << 4 | hex());
+                    case '"', '\\', '/' -> (char) e;
+                    default -> throw malformed("bad escape");
+                };
+            } else {
+                n += Character.toChars(utf8(c & 0xFF), cs, n);
+            }
+        }
+        out.append(cs, 0, n);
+    }
+
+    /** Rest of a multi-byte UTF-8 sequence; malformed input decodes to U+FFFD. */
+    private int utf8(int b) throws IOException {
+        int n;
+        int cp;
+        if ((b & 0xE0) == 0xC0) {
+            n = 1;
+            cp = b & 0x1F;
+        } else if ((b & 0xF0) == 0xE0) {
+            n = 2;
+            cp = b & 0x0F;
+        } else if ((b & 0xF8) == 0xF0) {
+            n = 3;
+            cp = b & 0x07;
+        } else {
+            return 0xFFFD;
+        }
+        for (int i = 0; i < n; i++) {
+            int c = peek();
+            if ((c & 0xC0) != 0x80)
+                return 0xFFFD;
+            pos++;
+            cp = cp << 6 | c & 0x3F;
+        }
+        return cp <= Character.MAX_CODE_POINT ? cp : 0xFFFD;
+    }
+
+    private int hex() throws IOException {
+        int c = read();
+        int d = Character.digit(c, 16);
+        if (d < 0)
+            throw malformed("bad \\u escape");
+        return d;
+    }
+
+    private int skipWs() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == lim && fill() < 0)
+            return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (pos == lim && fill() < 0)
+            return -1;
+        return buf[pos] & 0xFF;
+    }
+
+    private int fill() throws IOException {
+        int n = in.read(buf);
+        pos = 0;
+        lim = Math.max(n, 0);
+        return n;
+    }
+
+    private static IOException malformed(String what) {
+        return new IOException("Malformed LLM response: " + what);
+    }
+}
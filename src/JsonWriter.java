@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * Minimal JSON writer for the LLM request payload. Output is UTF-8 in a
+ * growable byte array that the caller resets and reuses across requests;
+ * strings are escaped and encoded in one pass, with no intermediate Strings.
+ */
+public final class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf;
+    private int len;
+
+    public JsonWriter(int capacity) {
+        buf = new byte[Math.max(16, capacity)];
+    }
+
+    public JsonWriter reset() {
+        len = 0;
+        return this;
+    }
+
+    /** Appends ASCII punctuation or a literal such as {@code "model":} verbatim. */
+    public JsonWriter raw(String ascii) {
+        int n = ascii.length();
+        ensure(n);
+        for (int i = 0; i < n; i++)
+            buf[len++] = (byte) ascii.charAt(i);
+        return this;
+    }
+
+    public JsonWriter raw(char ascii) {
+        ensure(1);
+        buf[len++] = (byte) ascii;
+        return this;
+    }
+
+    /** Appends already-encoded JSON, e.g. a cached message object. */
+    public JsonWriter raw(byte[] json) {
+        ensure(json.length);
+        System.arraycopy(json, 0, buf, len, json.length);
+        len += json.length;
+        return this;
+    }
+
+    public JsonWriter bool(boolean b) {
+        return raw(b ? "true" : "false");
+    }
+
+    /**
+     * Appends {@code s} as a quoted JSON string. Quotes, backslashes and all
+     * control characters are escaped; a surrogate pair becomes one 4-byte
+     * UTF-8 sequence and an unpaired surrogate becomes U+FFFD.
+     */
+    public JsonWriter string(CharSequence s) {
+        int n = s.length();
+        ensure(n + 2); // enough if everything is plain ASCII; other paths check for more
+        byte[] b = buf;
+        int p = len;
+        b[p++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && c >= 0x20 && c != '"' && c != '\\') {
+                b[p++] = (byte) c;
+                continue;
+            }
+            // up to 6 bytes for this char, at least one for each one left, and the closing quote
+            if (p + 6 + n - i > b.length) {
+                len = p;
+                ensure(6 + n - i);
+                b = buf;
+            }
+            if (c < 0x80) {
+                b[p++] = '\\';
+                switch (c) {
+                    case '"', '\\' -> b[p++] = (byte) c;
+                    case '\n' -> b[p++] = 'n';
+                    case '\r' -> b[p++] = 'r';
+                    case '\t' -> b[p++] = 't';
+                    case '\b' -> b[p++] = 'b';
+                    case '\f' -> b[p++] = 'f';
+                    default -> {
+                        b[p++] = 'u';
+                        b[p++] = '0';
+                        b[p++] = '0';
+                        b[p++] = HEX[c >> 4];
+                        b[p++] = HEX[c & 0xF];
+                    }
+                }
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | c >> 6);
+                b[p++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                b[p++] = (byte) (0xE0 | c >> 12);
+                b[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                b[p++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xF0 | cp >> 18);
+                b[p++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                b[p++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                b[p++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                b[p++] = (byte) 0xEF; // U+FFFD
+                b[p++] = (byte) 0xBF;
+                b[p++] = (byte) 0xBD;
+            }
+        }
+        b[p++] = '"';
+        len = p;
+        return this;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(len + extra, buf.length * 2));
+    }
+
+    /** The backing array; valid up to {@link #length()} until the next write or reset. */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits decrypted bytes into protocol lines for the non-blocking transport,
+ * matching BufferedReader.readLine for "\n" and "\r\n" terminators. Only the
+ * bytes of an incomplete line are retained between reads.
+ */
+public class LineDecoder {
+    public interface Sink {
+        /** Returns false to stop decoding (the connection is closing). */
+        boolean onLine(String line);
+    }
+
+    private static final int INITIAL = 256;
+
+    private final int maxLine;
+    private byte[] partial;
+    private int len;
+
+    public LineDecoder(int maxLine) {
+        this.maxLine = maxLine;
+    }
+
+    /** Consumes all of {@code src}; returns false if the sink asked to stop. */
+    public boolean feed(ByteBuffer src, Sink sink) throws IOException {
+        while (src.hasRemaining()) {
+            int start = src.position();
+            int lim = src.limit();
+            int nl = -1;
+            for (int i = start; i < lim; i++) {
+                if (src.get(i) == '\n') {
+                    nl = i;
+                    break;
+                }
+            }
+            int end = nl < 0 ? lim : nl;
+            append(src, start, end - start);
+            src.position(nl < 0 ? lim : nl + 1);
+            if (nl < 0)
+                return true;
+
+            int n = len > 0 && partial[len - 1] == '\r' ? len - 1 : len;
+            String line = new String(partial, 0, n, StandardCharsets.UTF_8);
+            len = 0;
+            if (partial.length > 4 * INITIAL)
+                partial = null; // don't pin a large buffer on an idle connection
+            if (!sink.onLine(line))
+                return false;
+        }
+        return true;
+    }
+
+    private void append(ByteBuffer src, int from, int n) throws IOException {
+        if (n == 0)
+            return;
+        if (len + n > maxLine)
+            throw new IOException("Line exceeds " + maxLine + " bytes");
+        if (partial == null)
+            partial = new byte[Math.max(INITIAL, n)];
+        else if (len + n > partial.length)
+            partial = Arrays.copyOf(partial, Math.min(maxLine, Math.max(len + n, partial.length * 2)));
+        src.get(from, partial, len, n);
+        len += n;
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Long-lived client for the Ollama chat endpoint. One HttpClient (and its
+ * connection pool) is shared by every AI room; at most {@code maxConcurrent}
+ * requests run at once, up to {@code maxQueued} more wait for a slot, and
+ * anything beyond that fails fast with {@link BusyException}.
+ */
+public class LlmClient {
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String msg) {
+            super(msg);
+        }
+    }
+
+    private final HttpClient http;
+    private final URI uri;
+    private final String model;
+    private final Duration requestTimeout;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final AtomicInteger waiting = new AtomicInteger();
+    // one payload buffer per AI room worker, grown to the room's largest request
+    private static final ThreadLocal<JsonWriter> PAYLOAD = ThreadLocal.withInitial(() -> new JsonWriter(4096));
+
+    public LlmClient(URI uri, String model, Duration connectTimeout, Duration requestTimeout,
+            int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+        this.uri = uri;
+        this.model = model;
+        this.requestTimeout = requestTimeout;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    public static LlmClient fromSystemProperties() {
+        return new LlmClient(
+                URI.create(System.getProperty("chat.llm.url", "http://localhost:11434/api/chat")),
+                System.getProperty("chat.llm.model", "llama3.2"),
+                Duration.ofMillis(Long.getLong("chat.llm.connectTimeoutMs", 2000)),
+                Duration.ofMillis(Long.getLong("chat.llm.requestTimeoutMs", 120_000)),
+                Integer.getInteger("chat.ai.maxInFlight", 4),
+                Integer.getInteger("chat.llm.maxQueued", 16),
+                Long.getLong("chat.llm.queueTimeoutMs", 30_000));
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getActiveRequests() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public int getQueuedRequests() {
+        return waiting.get();
+    }
+
+    private void acquire() throws BusyException, InterruptedException {
+        if (permits.tryAcquire())
+            return;
+        if (waiting.incrementAndGet() > maxQueued) {
+            waiting.decrementAndGet();
+            Metrics.llmBusy.increment();
+            throw new BusyException("LLM queue full");
+        }
+        try {
+            if (!permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                Metrics.llmBusy.increment();
+                throw new BusyException("Timed out waiting for an LLM slot");
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private HttpRequest buildRequest(List<Message> history, boolean stream) {
+        // send() has returned before the same thread builds its next payload, so the buffer is not copied
+        JsonWriter w = writeChatPayload(PAYLOAD.get().reset(), model, history, stream);
+        return HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(w.buffer(), 0, w.length()))
+                .build();
+    }
+
+    /** Returns the model's reply, or null if the backend could not be reached. */
+    public String chat(List<Message> history) throws BusyException {
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        long start = System.nanoTime();
+        Metrics.llmRequests.increment();
+        try {
+            HttpResponse<InputStream> resp = http.send(buildRequest(history, false), HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = resp.body()) {
+                JsonReader r = new JsonReader(body);
+                String content = r.next() ? r.content() : null;
+                r.drain();
+                if (content != null)
+                    return stripThinkTags(content);
+                Metrics.llmFailures.increment();
+                System.err.println("LLM returned no content (HTTP " + resp.statusCode() + "): " + r.error());
+                return null;
+            }
+        } catch (Exception e) {
+            Metrics.llmFailures.increment();
+            System.err.println("Cannot contact LLM: " + e.getMessage());
+            return null;
+        } finally {
+            permits.release();
+            Metrics.llmMicros.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #chat}: consumes Ollama's NDJSON stream line
+     * by line, handing each content fragment to {@code onToken} as it arrives,
+     * and returns the assembled reply (or null on failure).
+     */
+    public String streamChat(List<Message> history, Consumer<String> onToken) throws BusyException {
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        long start = System.nanoTime();
+        Metrics.llmRequests.increment();
+        try {
+            HttpResponse<InputStream> resp = http.send(buildRequest(history, true), HttpResponse.BodyHandlers.ofInputStream());
+            StringBuilder full = new StringBuilder();
+            try (InputStream body = resp.body()) {
+                JsonReader r = new JsonReader(body);
+                while (r.next()) {
+                    String token = r.content();
+                    if (token == null) {
+                        Metrics.llmFailures.increment();
+                        System.err.println("Unexpected LLM stream object (HTTP " + resp.statusCode() + "): " + r.error());
+                        return null;
+                    }
+                    if (!token.isEmpty()) {
+                        if (full.length() == 0)
+                            Metrics.ttftMicros.record((System.nanoTime() - start) / 1000);
+                        full.append(token);
+                        onToken.accept(token);
+                    }
+                    if (r.done())
+                        break;
+                }
+                r.drain();
+            }
+            return full.length() > 0 ? stripThinkTags(full.toString()) : null;
+        } catch (Exception e) {
+            Metrics.llmFailures.increment();
+            System.err.println("Cannot contact LLM: " + e.getMessage());
+            return null;
+        } finally {
+            permits.release();
+            Metrics.llmMicros.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /** {"model":..,"messages":[..],"stream":..} with each message's cached encoding copied in. */
+    static JsonWriter writeChatPayload(JsonWriter w, String model, List<Message> history, boolean stream) {
+        w.raw("{\"model\":").string(model).raw(",\"messages\":[");
+        for (int j = 0; j < history.size(); j++) {
+            if (j > 0)
+                w.raw(',');
+            w.raw(history.get(j).json());
+        }
+        return w.raw("],\"stream\":").bool(stream).raw('}');
+    }
+
+    private static String stripThinkTags(String content) {
+        return content.replace("<think>", "")
+                .replace("</think>", "")
+                .trim();
+    }
+}
@@ -2,9 +2,25 @@
 public class Message {
     public final String role;
     public final String content;
+    // UTF-8 {"role":..,"content":..} object, encoded once and copied into every request
+    private byte[] json;
 
     public Message(String r, String c) {
         role = r;
         content = c;
     }
+
+    public byte[] json() {
+        byte[] j = json;
+        if (j == null) {
+            JsonWriter w = new JsonWriter(content.length() + 32);
+            json = j = w.raw("{\"role\":").string(role).raw(",\"content\":").string(content).raw('}').toByteArray();
+        }
+        return j;
+    }
+
+    /** Rough token count (~4 chars per token plus per-message overhead). */
+    public int estimateTokens() {
+        return content.length() / 4 + 4;
+    }
 }
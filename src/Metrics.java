@@ -0,0 +1,240 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Server-wide counters and latency histograms (all in microseconds), readable
+ * by admins with the STATS command and over JMX as chat:type=Metrics.
+ */
+public final class Metrics {
+    public static final LongAdder connectionsAccepted = new LongAdder();
+    public static final LongAdder tlsHandshakes = new LongAdder();
+    public static final LongAdder tlsResumed = new LongAdder();
+    public static final LongAdder authFailures = new LongAdder();
+    public static final LongAdder broadcasts = new LongAdder();
+    public static final LongAdder llmRequests = new LongAdder();
+    public static final LongAdder llmFailures = new LongAdder();
+    public static final LongAdder llmBusy = new LongAdder();
+    public static final LongAdder clusterSent = new LongAdder();
+    public static final LongAdder clusterReceived = new LongAdder();
+    public static final LongAdder aiTurns = new LongAdder();
+    public static final LongAdder llmCacheHits = new LongAdder();
+    public static final LongAdder llmCacheMisses = new LongAdder();
+    public static final LongAdder rateRejected = new LongAdder();
+    public static final LongAdder rateDelayed = new LongAdder();
+    // which budget held a message back, indexed like ClientHandler.bucket
+    static final String[] RATE_BUDGETS = { "user.messages", "room.messages", "user.ai", "room.ai" };
+    public static final LongAdder[] rateLimitedBy = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+    public static final LongAdder slowWarned = new LongAdder();
+    public static final LongAdder slowDropStarts = new LongAdder();
+    public static final LongAdder slowShed = new LongAdder();
+    public static final LongAdder slowEvicted = new LongAdder();
+    public static final LongAdder slowWriteTimeouts = new LongAdder();
+
+    public static final Histogram handshakeMicros = new Histogram();
+    public static final Histogram authMicros = new Histogram();
+    public static final Histogram fanoutMicros = new Histogram();
+    public static final Histogram llmMicros = new Histogram();
+    public static final Histogram ttftMicros = new Histogram();
+    public static final Histogram rateDelayMicros = new Histogram();
+    // user messages answered by each AI turn (a count, not a latency)
+    public static final Histogram aiBatchSize = new Histogram();
+    // per cache hit: how long the request it replaced took
+    public static final Histogram llmCacheSavedMicros = new Histogram();
+
+    private static final Set<String> ADMINS = Set.copyOf(Arrays.asList(
+            System.getProperty("chat.admins", "").split("\\s*,\\s*")));
+
+    private Metrics() {
+    }
+
+    public static boolean isAdmin(String user) {
+        return user != null && !user.isEmpty() && ADMINS.contains(user);
+    }
+
+    /** Flat name -> value view of every metric, shared by STATS and JMX. */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("connections.accepted", connectionsAccepted.sum());
+        m.put("sessions.active", ChatServer.getSessionCount());
+        m.put("rooms.active", ChatServer.getRooms().size());
+        m.put("tls.handshakes", tlsHandshakes.sum());
+        m.put("tls.resumed", tlsResumed.sum());
+        histogram(m, "tls.handshake.us", handshakeMicros);
+        histogram(m, "auth.us", authMicros);
+        m.put("auth.failures", authFailures.sum());
+        m.put("broadcasts", broadcasts.sum());
+        histogram(m, "broadcast.fanout.us", fanoutMicros);
+        if (Cluster.isEnabled()) {
+            int mirrors = 0;
+            for (ChatRoom r : ChatServer.getRooms())
+                if (r.isRemote())
+                    mirrors++;
+            m.put("cluster.nodes", Cluster.size());
+            m.put("cluster.links.up", Cluster.getLinksUp());
+            m.put("cluster.rooms.mirrored", mirrors);
+            m.put("cluster.frames.sent", clusterSent.sum());
+            m.put("cluster.frames.received", clusterReceived.sum());
+            m.put("cluster.frames.dropped", Cluster.getDropped());
+        }
+        NioServer nio = ChatServer.getNioServer();
+        if (nio != null) {
+            m.put("nio.buffers.allocated", nio.getNetPool().getAllocatedCount());
+            m.put("nio.buffers.pooled", nio.getNetPool().getPooledCount());
+        }
+        m.put("outbound.records", ClientHandler.getRecordsWritten());
+        m.put("outbound.frames", ClientHandler.getFramesWritten());
+
+        Histogram depth = new Histogram();
+        long dropped = 0, maxBytes = 0;
+        int peak = 0, warn = 0, dropping = 0;
+        for (Session s : ChatServer.getSessions()) {
+            ClientHandler h = s.handler;
+            if (h == null)
+                continue;
+            depth.record(h.getQueueDepth());
+            peak = Math.max(peak, h.getPeakQueueDepth());
+            dropped += h.getDroppedCount();
+            if (h.isClosed())
+                continue;
+            maxBytes = Math.max(maxBytes, h.getQueuedBytes());
+            switch (h.lagLevel) {
+                case WARN -> warn++;
+                case DROP -> dropping++;
+                default -> {
+                }
+            }
+        }
+        histogram(m, "client.queue.depth", depth);
+        m.put("client.queue.depth.peak", peak);
+        m.put("client.queue.bytes.max", maxBytes);
+        m.put("client.dropped", dropped);
+
+        m.put("slow.warn.now", warn);
+        m.put("slow.drop.now", dropping);
+        m.put("slow.warned", slowWarned.sum());
+        m.put("slow.drop.starts", slowDropStarts.sum());
+        m.put("slow.shed", slowShed.sum());
+        m.put("slow.evicted", slowEvicted.sum());
+        m.put("slow.writeTimeouts", slowWriteTimeouts.sum());
+
+        m.put("ratelimit.rejected", rateRejected.sum());
+        m.put("ratelimit.delayed", rateDelayed.sum());
+        for (int i = 0; i < RATE_BUDGETS.length; i++)
+            m.put("ratelimit.by." + RATE_BUDGETS[i], rateLimitedBy[i].sum());
+        histogram(m, "ratelimit.delay.us", rateDelayMicros);
+
+        m.put("ai.turns", aiTurns.sum());
+        int aiPending = 0;
+        for (ChatRoom r : ChatServer.getRooms())
+            aiPending += r.getPendingAIRequests();
+        m.put("ai.pending", aiPending);
+        histogram(m, "ai.batch.size", aiBatchSize);
+
+        LlmClient llm = ChatServer.getLlmClient();
+        m.put("llm.requests", llmRequests.sum());
+        m.put("llm.failures", llmFailures.sum());
+        m.put("llm.busy", llmBusy.sum());
+        m.put("llm.active", llm.getActiveRequests());
+        m.put("llm.queued", llm.getQueuedRequests());
+        histogram(m, "llm.request.us", llmMicros);
+        histogram(m, "llm.ttft.us", ttftMicros);
+        m.put("llm.cache.hits", llmCacheHits.sum());
+        m.put("llm.cache.misses", llmCacheMisses.sum());
+        m.put("llm.cache.entries", ChatServer.getResponseCache().size());
+        m.put("llm.cache.saved.ms", Math.round(llmCacheSavedMicros.mean() * llmCacheSavedMicros.count() / 1000));
+        histogram(m, "llm.cache.saved.us", llmCacheSavedMicros);
+        return m;
+    }
+
+    private static void histogram(Map<String, Object> m, String name, Histogram h) {
+        m.put(name + ".count", h.count());
+        m.put(name + ".p50", h.percentile(0.50));
+        m.put(name + ".p99", h.percentile(0.99));
+        m.put(name + ".p999", h.percentile(0.999));
+        m.put(name + ".max", h.max());
+    }
+
+    /**
+     * STATS output: one "name value" line per metric, then per-room fan-out for
+     * busy rooms and the backlog of the clients furthest behind.
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        snapshot().forEach((k, v) -> lines.add(k + " " + v));
+        List<ChatRoom> rooms = new ArrayList<>(ChatServer.getRooms());
+        rooms.sort(Comparator.comparingLong(ChatRoom::getBroadcastCount).reversed());
+        for (ChatRoom r : rooms.subList(0, Math.min(10, rooms.size()))) {
+            if (r.getBroadcastCount() == 0)
+                break;
+            lines.add(String.format("room %s members=%d broadcasts=%d fanout.mean.us=%.1f fanout.max.us=%d",
+                    r.getName(), r.getMemberCount(), r.getBroadcastCount(), r.getFanoutMeanMicros(),
+                    r.getFanoutMaxMicros()));
+        }
+        List<ClientHandler> lagging = new ArrayList<>();
+        for (Session s : ChatServer.getSessions()) {
+            ClientHandler h = s.handler;
+            if (h != null && !h.isClosed() && (h.getQueueDepth() > 0 || h.lagLevel != SlowConsumerMonitor.Level.OK))
+                lagging.add(h);
+        }
+        lagging.sort(Comparator.comparingInt(ClientHandler::getQueueDepth).reversed());
+        long now = System.nanoTime();
+        for (ClientHandler h : lagging.subList(0, Math.min(10, lagging.size())))
+            lines.add(SlowConsumerMonitor.describe(h, now));
+        return lines;
+    }
+
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Metrics MBean not registered: " + e);
+        }
+    }
+
+    /** Read-only view of {@link #snapshot()}; the attribute set is whatever the snapshot holds. */
+    private static final class Jmx implements DynamicMBean {
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Object v = snapshot().get(name);
+            if (v == null)
+                throw new AttributeNotFoundException(name);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> m = snapshot();
+            AttributeList list = new AttributeList();
+            for (String n : names)
+                if (m.containsKey(n))
+                    list.add(new Attribute(n, m.get(n)));
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute a) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read-only: " + a.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList a) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String op, Object[] params, String[] sig) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(op));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            snapshot().forEach((k, v) -> attrs.add(
+                    new MBeanAttributeInfo(k, v.getClass().getName(), k, true, false, false)));
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * Alternative transport to one virtual thread per socket: a small set of
+ * selector threads multiplex every connection over non-blocking channels, with
+ * TLS handled by SSLEngine. Protocol handling is the same ClientHandler state
+ * machine, fed one decoded line at a time.
+ *
+ * Network buffers come from a shared pool and are only held while they contain
+ * unprocessed or unsent bytes; decrypted input goes through one scratch buffer
+ * per selector thread.
+ */
+public class NioServer {
+    private static final int MAX_LINE = Integer.getInteger("chat.nio.maxLineBytes", 64 * 1024);
+    private static final int POOLED_BUFFERS = Integer.getInteger("chat.nio.pooledBuffers", 4096);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_GATHER = 64;
+
+    private final SSLContext ctx;
+    private final int port;
+    private final SelectorLoop[] loops;
+    private final BufferPool netPool;
+    // SSLEngine delegated tasks (key exchange, cert work) must not stall a selector
+    private final ExecutorService handshakeTasks = Executors.newVirtualThreadPerTaskExecutor();
+
+    public NioServer(SSLContext ctx, int port, int selectors) throws IOException {
+        this.ctx = ctx;
+        this.port = port;
+        SSLSession probe = ctx.createSSLEngine().getSession();
+        this.netPool = new BufferPool(probe.getPacketBufferSize(), POOLED_BUFFERS);
+        this.loops = new SelectorLoop[selectors];
+        for (int i = 0; i < selectors; i++)
+            loops[i] = new SelectorLoop(i, probe.getApplicationBufferSize());
+    }
+
+    BufferPool getNetPool() {
+        return netPool;
+    }
+
+    public void run() throws IOException {
+        for (SelectorLoop l : loops)
+            Thread.ofPlatform().name("selector-" + l.id).start(l);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            System.out.println("ChatServer listening on port " + port + " (nio, " + loops.length + " selectors)");
+            int next = 0;
+            while (true) {
+                SocketChannel ch = server.accept();
+                Metrics.connectionsAccepted.increment();
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SSLEngine engine = ctx.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setEnabledProtocols(new String[] { "TLSv1.2", "TLSv1.3" });
+                SelectorLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(ch, engine));
+            }
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+        final int id;
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // decrypted input of whichever connection is being read; lines are decoded before reuse
+        final ByteBuffer appIn;
+        volatile Thread thread;
+
+        SelectorLoop(int id, int appBufferSize) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+            this.appIn = ByteBuffer.allocateDirect(appBufferSize);
+        }
+
+        void execute(Runnable r) {
+            tasks.add(r);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        void register(SocketChannel ch, SSLEngine engine) {
+            Connection c = new Connection(this, ch, engine);
+            try {
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                engine.beginHandshake();
+            } catch (IOException e) {
+                c.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                Runnable r;
+                while ((r = tasks.poll()) != null) {
+                    try {
+                        r.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            c.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            c.flush();
+                    } catch (IOException | RuntimeException e) {
+                        c.abort();
+                    }
+                }
+            }
+        }
+    }
+
+    /** One client socket. All methods except the Transport hooks run on the owning selector thread. */
+    private final class Connection implements ClientHandler.Transport {
+        final SelectorLoop loop;
+        final SocketChannel ch;
+        final SSLEngine engine;
+        final ClientHandler handler = new ClientHandler(this);
+        final LineDecoder decoder = new LineDecoder(MAX_LINE);
+        BinaryProtocol.Decoder frames; // once the client has negotiated binary framing
+        final AtomicBoolean writeScheduled = new AtomicBoolean();
+        final long acceptedMillis = System.currentTimeMillis();
+        final long acceptedNanos = System.nanoTime();
+        SelectionKey key;
+        ByteBuffer netIn; // write mode between reads
+        ByteBuffer netOut; // read mode: ciphertext not yet written
+        // frames being wrapped, oldest first; the first may be partially consumed
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        int gathered;
+        boolean handshakeDone;
+        boolean taskRunning;
+        boolean closeWhenFlushed;
+        boolean closed;
+
+        Connection(SelectorLoop loop, SocketChannel ch, SSLEngine engine) {
+            this.loop = loop;
+            this.ch = ch;
+            this.engine = engine;
+        }
+
+        @Override
+        public void framesQueued() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    writeScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        abort();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close() {
+            loop.execute(this::abort);
+        }
+
+        @Override
+        public void reset() {
+            loop.execute(() -> {
+                try {
+                    ch.setOption(StandardSocketOptions.SO_LINGER, 0);
+                } catch (IOException ignored) {
+                }
+                abort();
+            });
+        }
+
+        void onReadable() throws IOException {
+            if (netIn == null)
+                netIn = netPool.acquire();
+            if (ch.read(netIn) < 0) {
+                abort();
+                return;
+            }
+            processInbound();
+        }
+
+        private void processInbound() throws IOException {
+            netIn.flip();
+            try {
+                while (netIn.hasRemaining() && !closed && !taskRunning) {
+                    ByteBuffer app = loop.appIn;
+                    app.clear();
+                    SSLEngineResult r = engine.unwrap(netIn, app);
+                    if (r.getStatus() == Status.BUFFER_UNDERFLOW)
+                        break;
+                    if (r.getStatus() == Status.CLOSED) {
+                        abort();
+                        return;
+                    }
+                    app.flip();
+                    if (app.hasRemaining() && !feed(app))
+                        return;
+                    advanceHandshake();
+                }
+            } finally {
+                if (netIn != null) {
+                    netIn.compact();
+                    if (netIn.position() == 0) {
+                        netPool.release(netIn);
+                        netIn = null;
+                    }
+                }
+            }
+        }
+
+        /** Decodes lines or frames; returns false once the connection is closing. */
+        private boolean feed(ByteBuffer app) throws IOException {
+            while (app.hasRemaining()) {
+                if (frames != null)
+                    return frames.feed(app, this::onFrame);
+                if (!decoder.feed(app, this::onLine) && frames == null)
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean onLine(String line) {
+            if (handler.onLine(line)) {
+                if (!handler.isBinary())
+                    return true;
+                // stop line decoding; whatever follows is framed
+                frames = new BinaryProtocol.Decoder(ClientHandler.MAX_FRAME);
+                return false;
+            }
+            return closing();
+        }
+
+        private boolean onFrame(byte op, int roomId, long seq, ByteBuffer payload) {
+            return handler.onFrame(op, roomId, seq, payload) || closing();
+        }
+
+        private boolean closing() {
+            closeWhenFlushed = true;
+            setInterest(SelectionKey.OP_READ, false);
+            try {
+                flush();
+            } catch (IOException e) {
+                abort();
+            }
+            return false;
+        }
+
+        private void advanceHandshake() throws IOException {
+            HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == HandshakeStatus.NEED_TASK)
+                runDelegatedTasks();
+            else if (hs == HandshakeStatus.NEED_WRAP)
+                flush();
+            checkHandshakeDone();
+        }
+
+        private void checkHandshakeDone() {
+            if (!handshakeDone && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+                handshakeDone = true;
+                ChatServer.recordHandshake(engine.getSession(), acceptedMillis, acceptedNanos);
+                handler.onConnect();
+            }
+        }
+
+        private void runDelegatedTasks() {
+            if (taskRunning)
+                return;
+            taskRunning = true;
+            setInterest(SelectionKey.OP_READ, false);
+            handshakeTasks.execute(() -> {
+                Runnable t;
+                while ((t = engine.getDelegatedTask()) != null)
+                    t.run();
+                loop.execute(() -> {
+                    taskRunning = false;
+                    if (closed)
+                        return;
+                    setInterest(SelectionKey.OP_READ, !closeWhenFlushed);
+                    try {
+                        advanceHandshake();
+                        if (netIn != null)
+                            processInbound();
+                    } catch (IOException e) {
+                        abort();
+                    }
+                });
+            });
+        }
+
+        /** Wraps and writes handshake records and queued frames until done or the socket is full. */
+        void flush() throws IOException {
+            while (!closed) {
+                if (netOut != null && netOut.hasRemaining()) {
+                    ch.write(netOut);
+                    if (netOut.hasRemaining()) {
+                        setInterest(SelectionKey.OP_WRITE, true);
+                        return;
+                    }
+                }
+                HandshakeStatus hs = engine.getHandshakeStatus();
+                boolean appData;
+                if (hs == HandshakeStatus.NEED_WRAP) {
+                    appData = false;
+                } else if (hs == HandshakeStatus.NOT_HANDSHAKING && handshakeDone) {
+                    if (!fillGather())
+                        break;
+                    appData = true;
+                } else {
+                    if (hs == HandshakeStatus.NEED_TASK)
+                        runDelegatedTasks();
+                    break;
+                }
+                if (netOut == null)
+                    netOut = netPool.acquire();
+                netOut.clear();
+                SSLEngineResult r = appData ? engine.wrap(gather, 0, gathered, netOut) : engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                if (appData && r.bytesConsumed() > 0)
+                    dropWrapped();
+                if (r.getStatus() == Status.CLOSED) {
+                    abort();
+                    return;
+                }
+                checkHandshakeDone();
+            }
+            if (netOut != null) {
+                netPool.release(netOut);
+                netOut = null;
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+            if (closeWhenFlushed && gathered == 0)
+                abort();
+        }
+
+        /**
+         * Tops up the gather array with queued frames so one wrap packs as many
+         * as fit in a record. Returns false if there is nothing to send.
+         */
+        private boolean fillGather() {
+            int bytes = 0;
+            for (int i = 0; i < gathered; i++)
+                bytes += gather[i].remaining();
+            int max = ClientHandler.COALESCE_BYTES > 0 ? MAX_GATHER : 1;
+            while (gathered < max && (gathered == 0 || bytes < ClientHandler.COALESCE_BYTES)) {
+                ByteBuffer f = handler.pollFrame();
+                if (f == null)
+                    break;
+                gather[gathered++] = f.duplicate(); // the frame itself is shared with other members
+                bytes += f.remaining();
+            }
+            return gathered > 0;
+        }
+
+        private void dropWrapped() {
+            int done = 0;
+            while (done < gathered && !gather[done].hasRemaining())
+                done++;
+            ClientHandler.recordWrite(1, done);
+            System.arraycopy(gather, done, gather, 0, gathered - done);
+            Arrays.fill(gather, gathered - done, gathered, null);
+            gathered -= done;
+        }
+
+        private void setInterest(int op, boolean on) {
+            if (key == null || !key.isValid())
+                return;
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+
+        void abort() {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                // best effort close_notify; a stuck peer just doesn't get it
+                engine.closeOutbound();
+                ByteBuffer out = netOut != null ? netOut : netPool.acquire();
+                out.clear();
+                engine.wrap(EMPTY, out);
+                out.flip();
+                ch.write(out);
+                netOut = out;
+            } catch (IOException | RuntimeException ignored) {
+            }
+            if (key != null)
+                key.cancel();
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+            if (netIn != null) {
+                netPool.release(netIn);
+                netIn = null;
+            }
+            if (netOut != null) {
+                netPool.release(netOut);
+                netOut = null;
+            }
+            handler.onDisconnect();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded per-client queue of encoded outgoing frames. Producers (room
+ * broadcasts, protocol replies) only ever enqueue; a single writer drains it
+ * to the socket.
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, DISCONNECT
+    }
+
+    private final ArrayDeque<ByteBuffer> items;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int depth;
+    private volatile int peakDepth;
+    private volatile long bytes;
+    private volatile long taken;
+    private volatile boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.items = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Enqueues a frame. Returns false only when the queue is full and the policy
+     * is DISCONNECT, in which case the caller is expected to drop the client.
+     */
+    public boolean offer(ByteBuffer m) {
+        lock.lock();
+        try {
+            if (closed)
+                return true;
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_NEWEST -> {
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                    case DROP_OLDEST -> {
+                        bytes -= items.pollFirst().remaining();
+                        dropped.incrementAndGet();
+                    }
+                    case DISCONNECT -> {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+            }
+            items.addLast(m);
+            bytes += m.remaining();
+            depth = items.size();
+            if (depth > peakDepth)
+                peakDepth = depth;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks until a frame is available; returns null once closed and drained. */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed)
+                    return null;
+                notEmpty.await();
+            }
+            return removed(items.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Non-blocking variant of {@link #take}; returns null if nothing is queued. */
+    public ByteBuffer poll() {
+        lock.lock();
+        try {
+            return removed(items.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits up to {@code nanos} for a frame; returns null on timeout or once closed. */
+    public ByteBuffer poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed || nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removed(items.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer removed(ByteBuffer m) {
+        if (m != null) {
+            bytes -= m.remaining();
+            taken++;
+            depth = items.size();
+        }
+        return m;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public int peakDepth() {
+        return peakDepth;
+    }
+
+    /** Bytes in the frames currently queued. */
+    public long queuedBytes() {
+        return bytes;
+    }
+
+    /** Frames handed to the writer so far; stops moving while it is stuck. */
+    public long takenCount() {
+        return taken;
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+}
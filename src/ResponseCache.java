@@ -0,0 +1,131 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared cache of model replies for AI rooms, so that the same recent
+ * conversation (a greeting, a question a bot or a test keeps asking) is
+ * answered without another LLM round trip. The key is a SHA-256 of the model
+ * name and the last {@code window} messages sent to it, each normalized
+ * (trimmed, lower-cased, whitespace collapsed, trailing punctuation dropped).
+ * Entries are evicted least-recently-used beyond {@code maxEntries} and
+ * ignored once older than the TTL.
+ */
+public class ResponseCache {
+    private record Entry(String reply, long storedAtNanos, long costNanos) {
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final int window;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries;
+
+    public ResponseCache(int maxEntries, long ttlNanos, int window) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.window = Math.max(1, window);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    public static ResponseCache fromSystemProperties() {
+        return new ResponseCache(
+                Integer.getInteger("chat.ai.cache.maxEntries", 1024),
+                Long.getLong("chat.ai.cache.ttlSec", 600) * 1_000_000_000L,
+                Integer.getInteger("chat.ai.cache.windowTurns", 4));
+    }
+
+    /** False when configured with no room for entries; rooms then skip the cache entirely. */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public String key(String model, List<Message> context) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(model.getBytes(StandardCharsets.UTF_8));
+        for (Message m : context.subList(Math.max(0, context.size() - window), context.size())) {
+            md.update((byte) 0);
+            md.update(m.role.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(normalize(m.content).getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    static String normalize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space)
+                sb.append(' ');
+            space = false;
+            sb.append(Character.toLowerCase(c));
+        }
+        int end = sb.length();
+        while (end > 0 && ".!?".indexOf(sb.charAt(end - 1)) >= 0)
+            end--;
+        sb.setLength(end);
+        return sb.toString();
+    }
+
+    /**
+     * The cached reply for {@code key}, or null on a miss. A hit records the
+     * latency of the request it stands in for.
+     */
+    public String get(String key) {
+        Entry e;
+        lock.lock();
+        try {
+            e = entries.get(key);
+            if (e != null && System.nanoTime() - e.storedAtNanos > ttlNanos) {
+                entries.remove(key);
+                e = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (e == null) {
+            Metrics.llmCacheMisses.increment();
+            return null;
+        }
+        Metrics.llmCacheHits.increment();
+        Metrics.llmCacheSavedMicros.record(e.costNanos / 1000);
+        return e.reply;
+    }
+
+    /** Stores a reply that took {@code costNanos} to produce. */
+    public void put(String key, String reply, long costNanos) {
+        lock.lock();
+        try {
+            entries.put(key, new Entry(reply, System.nanoTime(), costNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
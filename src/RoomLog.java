@@ -0,0 +1,425 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Append-only message log of one room, split into segment files named after
+ * the offset of their first record. Each record is a 4-byte length followed by
+ * the already-framed line (UTF-8 text plus newline), so replay can hand mapped
+ * bytes straight to a client's outbound queue.
+ *
+ * Appends are queued and written by a single writer thread, which syncs once
+ * per batch (group commit) so fsync never sits on the broadcast path. A sparse
+ * index (offset, position) every {@code INDEX_INTERVAL} bytes lets a replay
+ * start near the requested offset without scanning the segment.
+ *
+ * Nothing is created on disk, and no writer is started, until the first
+ * append, so rooms nobody writes in cost neither a directory nor a thread.
+ *
+ * The log also keeps the room's sequence-number reservation (a file holding
+ * the highest seq that may have been handed out), so a restarted room
+ * carries on above the seqs its clients have seen. It is written by the
+ * writer too, and only once the room has logged something, so a room that
+ * only ever carried notices starts again from 0.
+ */
+public class RoomLog implements Closeable {
+    private static final long SEGMENT_BYTES = Long.getLong("chat.log.segmentBytes", 64L * 1024 * 1024);
+    private static final int INDEX_INTERVAL = Integer.getInteger("chat.log.indexIntervalBytes", 4096);
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String SEQ_FILE = "seq";
+
+    // a published prefix of a segment's index; the writer never changes entries below count
+    private record Index(int[] offsets, long[] positions, int count) {
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final Path logPath;
+        final Path indexPath;
+        // sparse index: relative offsets and their file positions, ascending.
+        // The arrays belong to the writer; readers only use the published snapshot.
+        private int[] idxOffsets = new int[16];
+        private long[] idxPositions = new long[16];
+        volatile Index published = new Index(idxOffsets, idxPositions, 0);
+        volatile long size;
+        volatile int records;
+        FileChannel log; // only the active segment keeps these open for writing
+        FileChannel index;
+        long lastIndexedPos;
+
+        Segment(Path dir, long baseOffset) {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logPath = dir.resolve(name + LOG_SUFFIX);
+            this.indexPath = dir.resolve(name + INDEX_SUFFIX);
+        }
+
+        int indexCount() {
+            return published.count;
+        }
+
+        /** Writer only. The entry is stored before the longer prefix is published. */
+        void addIndexEntry(int relOffset, long pos) {
+            int n = published.count;
+            if (n == idxOffsets.length) {
+                idxOffsets = Arrays.copyOf(idxOffsets, n * 2);
+                idxPositions = Arrays.copyOf(idxPositions, n * 2);
+            }
+            idxOffsets[n] = relOffset;
+            idxPositions[n] = pos;
+            published = new Index(idxOffsets, idxPositions, n + 1);
+            lastIndexedPos = pos;
+        }
+
+        /** File position of the closest indexed record at or before {@code relOffset}, as {offset, pos}. */
+        long[] floor(int relOffset) {
+            Index ix = published;
+            int lo = 0, hi = ix.count - 1, best = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ix.offsets[mid] <= relOffset) {
+                    best = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return best < 0 ? new long[] { 0, 0 } : new long[] { ix.offsets[best], ix.positions[best] };
+        }
+    }
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>(); // guarded by "this" for structure changes
+    private volatile Segment[] snapshot = new Segment[0];
+    private final LinkedBlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    // queued by close() so the writer finishes what is ahead of it and exits
+    private static final byte[] CLOSE = new byte[0];
+    // queued by reserveSeq for the writer to persist seqWanted
+    private static final byte[] SEQ = new byte[0];
+    private volatile long seqReserved; // durable
+    private volatile long seqWanted;
+    private volatile Thread writer;
+    private volatile boolean closed;
+
+    public RoomLog(Path dir) throws IOException {
+        this.dir = dir;
+        if (Files.isDirectory(dir)) {
+            recover();
+            Path p = dir.resolve(SEQ_FILE);
+            if (Files.exists(p)) {
+                byte[] b = Files.readAllBytes(p);
+                if (b.length == 8)
+                    seqReserved = seqWanted = ByteBuffer.wrap(b).getLong();
+            }
+        }
+    }
+
+    public static Path baseDir() {
+        return Path.of(System.getProperty("chat.log.dir", "rooms"));
+    }
+
+    /** Directory name for a room; dots are escaped too so no name maps to "." or "..". */
+    public static String dirName(String room) {
+        return URLEncoder.encode(room, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    public static String roomName(String dirName) {
+        return URLDecoder.decode(dirName, StandardCharsets.UTF_8);
+    }
+
+    /** Total records written so far (the offset the next one will get). */
+    public long endOffset() {
+        Segment[] segs = snapshot;
+        if (segs.length == 0)
+            return 0;
+        Segment last = segs[segs.length - 1];
+        return last.baseOffset + last.records;
+    }
+
+    /** Queues one line (UTF-8 text, no terminator) for durable append; never blocks on I/O. */
+    public void appendLine(byte[] text) {
+        if (closed)
+            return;
+        byte[] rec = new byte[4 + text.length + 1];
+        ByteBuffer.wrap(rec).putInt(text.length + 1);
+        System.arraycopy(text, 0, rec, 4, text.length);
+        rec[rec.length - 1] = '\n';
+        if (writer == null)
+            startWriter();
+        pending.add(rec);
+    }
+
+    /** Highest room seq durably reserved; a restarted room starts after it. */
+    public long reservedSeq() {
+        return seqReserved;
+    }
+
+    /**
+     * Asks the writer to reserve room seqs up to {@code upTo}. Returns false,
+     * reserving nothing, if nothing has been appended yet.
+     */
+    public boolean reserveSeq(long upTo) {
+        if (closed || writer == null)
+            return false;
+        if (upTo > seqWanted)
+            seqWanted = upTo;
+        pending.add(SEQ);
+        return true;
+    }
+
+    private synchronized void writeSeq(long upTo) throws IOException {
+        if (upTo <= seqReserved)
+            return;
+        storeSeq(upTo);
+    }
+
+    private synchronized void storeSeq(long upTo) throws IOException {
+        Files.createDirectories(dir);
+        try (FileChannel ch = FileChannel.open(dir.resolve(SEQ_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(8).putLong(0, upTo), 0);
+            ch.force(false);
+        }
+        seqReserved = upTo;
+    }
+
+    private synchronized void startWriter() {
+        if (writer == null)
+            writer = Thread.ofVirtual().name("roomlog-" + dir.getFileName()).start(this::writeLoop);
+    }
+
+    /**
+     * Streams the last {@code n} written records to {@code sink} as read-only
+     * slices of memory-mapped segment files, oldest first.
+     */
+    public void replayLast(int n, Consumer<ByteBuffer> sink) throws IOException {
+        long end = endOffset();
+        replay(Math.max(0, end - n), end, sink);
+    }
+
+    /** Like {@link #replayLast}, for records {@code from} (inclusive) to {@code to}, which must be written. */
+    public void replay(long from, long to, Consumer<ByteBuffer> sink) throws IOException {
+        for (Segment seg : snapshot) {
+            long segEnd = seg.baseOffset + seg.records;
+            if (segEnd <= from || seg.records == 0)
+                continue;
+            if (seg.baseOffset >= to)
+                break;
+            int rel = (int) Math.max(0, from - seg.baseOffset);
+            int limit = (int) Math.min(seg.records, to - seg.baseOffset);
+            long[] start = seg.floor(rel);
+            long size = seg.size;
+            try (FileChannel ch = FileChannel.open(seg.logPath, StandardOpenOption.READ)) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, start[1], size - start[1]);
+                int off = (int) start[0];
+                int pos = 0;
+                while (pos + 4 <= map.limit() && off < limit) {
+                    int len = map.getInt(pos);
+                    if (off >= rel)
+                        sink.accept(map.slice(pos + 4, len).asReadOnlyBuffer());
+                    pos += 4 + len;
+                    off++;
+                }
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+            for (Path p : ds) {
+                String f = p.getFileName().toString();
+                bases.add(Long.parseLong(f.substring(0, f.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases)
+            segments.add(loadSegment(base));
+        snapshot = segments.toArray(new Segment[0]);
+    }
+
+    /** Writer: creates the directory and first segment if needed and opens the last one for appends. */
+    private void openActive() throws IOException {
+        Files.createDirectories(dir);
+        synchronized (this) {
+            if (segments.isEmpty()) {
+                segments.add(new Segment(dir, 0));
+                snapshot = segments.toArray(new Segment[0]);
+            }
+        }
+        openForAppend(segments.get(segments.size() - 1));
+    }
+
+    /** Loads the sparse index and counts records from the last indexed one, dropping a torn tail. */
+    private Segment loadSegment(long base) throws IOException {
+        Segment seg = new Segment(dir, base);
+        long fileSize = Files.size(seg.logPath);
+        if (Files.exists(seg.indexPath)) {
+            ByteBuffer idx = ByteBuffer.wrap(Files.readAllBytes(seg.indexPath));
+            while (idx.remaining() >= 12) {
+                int rel = idx.getInt();
+                long pos = idx.getLong();
+                if (pos >= fileSize)
+                    break;
+                seg.addIndexEntry(rel, pos);
+            }
+        }
+        long[] from = seg.floor(Integer.MAX_VALUE);
+        int records = (int) from[0];
+        long pos = from[1];
+        try (FileChannel ch = FileChannel.open(seg.logPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer len = ByteBuffer.allocate(4);
+            while (pos + 4 <= fileSize) {
+                len.clear();
+                ch.read(len, pos);
+                int n = len.getInt(0);
+                if (n < 0 || pos + 4 + n > fileSize)
+                    break;
+                pos += 4 + n;
+                records++;
+            }
+            if (pos < fileSize)
+                ch.truncate(pos);
+        }
+        seg.size = pos;
+        seg.records = records;
+        return seg;
+    }
+
+    private void openForAppend(Segment seg) throws IOException {
+        seg.log = FileChannel.open(seg.logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        seg.log.position(seg.size);
+        seg.index = FileChannel.open(seg.indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        seg.index.position((long) seg.indexCount() * 12);
+        seg.index.truncate((long) seg.indexCount() * 12);
+    }
+
+    private void roll() throws IOException {
+        Segment old = segments.get(segments.size() - 1);
+        old.log.force(false);
+        old.index.force(false);
+        old.log.close();
+        old.index.close();
+        Segment next = new Segment(dir, old.baseOffset + old.records);
+        openForAppend(next);
+        synchronized (this) {
+            segments.add(next);
+            snapshot = segments.toArray(new Segment[0]);
+        }
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        ByteBuffer idxEntry = ByteBuffer.allocate(12);
+        try {
+            openActive();
+            boolean done = false;
+            while (!done) {
+                batch.add(pending.take());
+                // everything queued while the previous batch was syncing commits together
+                pending.drainTo(batch);
+                Segment seg = segments.get(segments.size() - 1);
+                int written = 0;
+                long pos = seg.size;
+                boolean reserve = false;
+                for (byte[] rec : batch) {
+                    if (rec == CLOSE) {
+                        done = true;
+                        continue;
+                    }
+                    if (rec == SEQ) {
+                        reserve = true;
+                        continue;
+                    }
+                    if (pos >= SEGMENT_BYTES && seg.records + written > 0) {
+                        seg.log.force(false);
+                        seg.size = pos;
+                        seg.records += written;
+                        written = 0;
+                        roll();
+                        seg = segments.get(segments.size() - 1);
+                        pos = 0;
+                    }
+                    if (pos - seg.lastIndexedPos >= INDEX_INTERVAL) {
+                        seg.addIndexEntry(seg.records + written, pos);
+                        idxEntry.clear();
+                        idxEntry.putInt(seg.records + written).putLong(pos).flip();
+                        seg.index.write(idxEntry);
+                    }
+                    ByteBuffer b = ByteBuffer.wrap(rec);
+                    while (b.hasRemaining())
+                        seg.log.write(b);
+                    pos += rec.length;
+                    written++;
+                }
+                seg.log.force(false);
+                seg.index.force(false);
+                // publish only what is on disk
+                seg.size = pos;
+                seg.records += written;
+                batch.clear();
+                if (reserve)
+                    writeSeq(seqWanted);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            System.err.println("Room log " + dir + " failed: " + e);
+        }
+    }
+
+    /**
+     * {@link #close()} for a clean shutdown, recording {@code lastSeq} as the
+     * exact end of the room's sequence (if it has a log on disk) so a restart
+     * leaves no hole in it.
+     */
+    public void close(long lastSeq) {
+        close();
+        synchronized (this) {
+            if (lastSeq == seqReserved || !Files.isDirectory(dir))
+                return;
+            try {
+                storeSeq(lastSeq);
+            } catch (IOException e) {
+                System.err.println("Room log " + dir + " seq reservation failed: " + e);
+            }
+        }
+    }
+
+    /** Stops accepting appends and waits for queued records to be synced. */
+    @Override
+    public void close() {
+        closed = true;
+        Thread w;
+        synchronized (this) {
+            w = writer;
+        }
+        if (w == null)
+            return;
+        pending.add(CLOSE);
+        try {
+            w.join(5000);
+        } catch (InterruptedException ignored) {
+        }
+        Segment active;
+        synchronized (this) {
+            if (segments.isEmpty())
+                return;
+            active = segments.get(segments.size() - 1);
+        }
+        try {
+            if (active.log != null) {
+                active.log.close();
+                active.index.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
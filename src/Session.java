@@ -1,21 +1,38 @@
 import java.time.Duration;
-import java.time.Instant;
 
 public class Session {
+    public final String token;
     public final String username;
     public volatile String roomName;
     public volatile ClientHandler handler;
-    private final Instant createdAt;
-    private static final Duration TOKEN_TTL = Duration.ofMinutes(30);
+    private final long expiresAtNanos;
+    static final Duration TOKEN_TTL = Duration.ofMinutes(30);
+    private static final double MESSAGES_PER_SEC = Double.parseDouble(System.getProperty("chat.rate.user.messagesPerSec", "5"));
+    private static final int MESSAGE_BURST = Integer.getInteger("chat.rate.user.messageBurst", 10);
+    private static final double AI_PER_MIN = Double.parseDouble(System.getProperty("chat.rate.user.aiPerMin", "6"));
+    private static final int AI_BURST = Integer.getInteger("chat.rate.user.aiBurst", 3);
 
-    public Session(String username, ClientHandler handler) {
+    // chat budgets; they belong to the session so reconnecting with TOKEN does not refill them
+    final TokenBucket messages = new TokenBucket(MESSAGES_PER_SEC, MESSAGE_BURST);
+    final TokenBucket aiTurns = new TokenBucket(AI_PER_MIN / 60, AI_BURST);
+
+    public Session(String token, String username, ClientHandler handler) {
+        this(token, username, handler, TOKEN_TTL.toNanos());
+    }
+
+    public Session(String token, String username, ClientHandler handler, long ttlNanos) {
+        this.token = token;
         this.username = username;
         this.handler = handler;
-        this.createdAt = Instant.now();
+        this.expiresAtNanos = System.nanoTime() + ttlNanos;
     }
 
     public boolean isExpired() {
-        return Instant.now().isAfter(createdAt.plus(TOKEN_TTL));
+        return System.nanoTime() - expiresAtNanos > 0;
+    }
+
+    public long getExpiresAtNanos() {
+        return expiresAtNanos;
     }
 
     public void setHandler(ClientHandler handler) {
@@ -0,0 +1,111 @@
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Live sessions indexed by token and by username. Lookups never take a global
+ * lock; once {@link #start} is called, expired sessions are removed eagerly by
+ * a sweeper thread draining a DelayQueue ordered by expiry time. Without it
+ * they are only dropped when looked up.
+ */
+public class SessionRegistry {
+    private final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> byUser = new ConcurrentHashMap<>();
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+    private Thread sweeper;
+
+    private record Expiry(Session session) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(session.getExpiresAtNanos() - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(session.getExpiresAtNanos(), ((Expiry) o).session.getExpiresAtNanos());
+        }
+    }
+
+    /** Starts the sweeper; returns this registry. */
+    public synchronized SessionRegistry start() {
+        if (sweeper == null)
+            sweeper = Thread.ofVirtual().name("session-sweeper").start(this::sweep);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (sweeper != null)
+            sweeper.interrupt();
+        sweeper = null;
+    }
+
+    public Session create(String username, ClientHandler handler) {
+        return add(new Session(UUID.randomUUID().toString(), username, handler));
+    }
+
+    /** Registers a session under a token minted elsewhere (a signed cluster token). */
+    public Session create(String token, String username, ClientHandler handler, long ttlNanos) {
+        return add(new Session(token, username, handler, ttlNanos));
+    }
+
+    /**
+     * Registers a session for a token minted before, unless its user has
+     * logged in again since: like AUTH, one live session per user. Returns
+     * null then; a concurrent adoption of the same token gets the same session.
+     */
+    public Session adopt(String token, String username, long ttlNanos) {
+        Session s = new Session(token, username, null, ttlNanos);
+        Session cur = byUser.compute(username, (u, old) -> old == null || old.isExpired() ? s : old);
+        if (cur != s)
+            return cur.token.equals(token) ? cur : null;
+        byToken.put(token, s);
+        expiries.add(new Expiry(s));
+        return s;
+    }
+
+    private Session add(Session s) {
+        byToken.put(s.token, s);
+        byUser.put(s.username, s);
+        expiries.add(new Expiry(s));
+        return s;
+    }
+
+    public Session get(String token) {
+        Session s = byToken.get(token);
+        if (s == null)
+            return null;
+        if (s.isExpired()) {
+            remove(s);
+            return null;
+        }
+        return s;
+    }
+
+    public boolean isLoggedIn(String username) {
+        Session s = byUser.get(username);
+        return s != null && !s.isExpired();
+    }
+
+    public void remove(Session s) {
+        byToken.remove(s.token, s);
+        byUser.remove(s.username, s);
+    }
+
+    public Collection<Session> all() {
+        return byToken.values();
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    private void sweep() {
+        while (true) {
+            try {
+                remove(expiries.take().session);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every connected client's outbound queue and escalates when one
+ * stops keeping up. Lag is the number of frames queued but not yet written;
+ * together with the queued bytes it is checked against two watermarks:
+ * - WARN: logged and counted once, and the client is told it is falling behind;
+ * - DROP: room messages are no longer queued for it (protocol replies still
+ *   are) until its queue drains to half the warn watermarks, then it gets a
+ *   GAP line for what it missed.
+ * A client that stays in DROP for chat.slow.dropGraceMs, or whose writer
+ * makes no progress for chat.slow.writeTimeoutMs while frames are waiting, is
+ * disconnected. Its Session is kept, so it can come back with TOKEN and
+ * replay from the room's ring.
+ */
+public final class SlowConsumerMonitor {
+    public enum Level {
+        OK, WARN, DROP
+    }
+
+    private static final long CHECK_MS = Long.getLong("chat.slow.checkMs", 250);
+    private static final long WRITE_TIMEOUT_NANOS = Long.getLong("chat.slow.writeTimeoutMs", 10_000) * 1_000_000L;
+    private static final int WARN_LAG = Integer.getInteger("chat.slow.warnLag", 256);
+    private static final long WARN_BYTES = Long.getLong("chat.slow.warnBytes", 256 * 1024);
+    private static final int DROP_LAG = Integer.getInteger("chat.slow.dropLag", 768);
+    private static final long DROP_BYTES = Long.getLong("chat.slow.dropBytes", 1024 * 1024);
+    private static final long DROP_GRACE_NANOS = Long.getLong("chat.slow.dropGraceMs", 5000) * 1_000_000L;
+
+    private SlowConsumerMonitor() {
+    }
+
+    public static void start() {
+        if (CHECK_MS <= 0)
+            return;
+        // a platform thread, so busy virtual threads cannot starve the check that is meant to catch them
+        Thread.ofPlatform().daemon().name("slow-consumers").start(() -> {
+            while (true) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(CHECK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (Session s : ChatServer.getSessions()) {
+                    ClientHandler h = s.handler;
+                    if (h != null && !h.isClosed())
+                        check(h, now);
+                }
+            }
+        });
+    }
+
+    /** One evaluation of one client; only ever called from the monitor thread. */
+    static void check(ClientHandler h, long now) {
+        int lag = h.getQueueDepth();
+        long bytes = h.getQueuedBytes();
+        long taken = h.getTakenCount();
+        if (lag == 0 || taken != h.seenTaken) {
+            h.seenTaken = taken;
+            h.progressAt = now;
+        }
+        long stalled = h.progressAt == 0 ? 0 : now - h.progressAt;
+        if (stalled > WRITE_TIMEOUT_NANOS) {
+            Metrics.slowWriteTimeouts.increment();
+            evict(h, "no write progress for " + stalled / 1_000_000 + " ms", lag, bytes);
+            return;
+        }
+
+        Level cur = h.lagLevel;
+        Level next;
+        if (lag >= DROP_LAG || bytes >= DROP_BYTES)
+            next = Level.DROP;
+        else if (cur == Level.DROP && (lag > WARN_LAG / 2 || bytes > WARN_BYTES / 2))
+            next = Level.DROP; // hysteresis: stay until mostly drained
+        else if (lag >= WARN_LAG || bytes >= WARN_BYTES)
+            next = Level.WARN;
+        else
+            next = Level.OK;
+
+        if (next == Level.DROP && cur == Level.DROP && now - h.lagLevelSince > DROP_GRACE_NANOS) {
+            evict(h, "still behind after " + DROP_GRACE_NANOS / 1_000_000 + " ms of dropped messages", lag, bytes);
+            return;
+        }
+        if (next == cur)
+            return;
+        h.lagLevel = next;
+        h.lagLevelSince = now;
+        if (next.compareTo(cur) < 0)
+            return;
+        System.err.println("Slow consumer " + h.getUsername() + ": " + next + ", lag " + lag + " frames, " + bytes
+                + " bytes queued");
+        if (cur == Level.OK)
+            Metrics.slowWarned.increment();
+        if (next == Level.DROP)
+            Metrics.slowDropStarts.increment();
+        h.sendMessage("SLOW_CONSUMER " + lag);
+    }
+
+    private static void evict(ClientHandler h, String why, int lag, long bytes) {
+        System.err.println("Disconnecting slow consumer " + h.getUsername() + ": " + why + " (lag " + lag
+                + " frames, " + bytes + " bytes queued)");
+        Metrics.slowEvicted.increment();
+        h.evict();
+    }
+
+    /** One STATS line about a client's backlog. */
+    public static String describe(ClientHandler h, long now) {
+        long stalled = h.getQueueDepth() == 0 || h.progressAt == 0 ? 0 : (now - h.progressAt) / 1_000_000;
+        return String.format("client %s lag=%d bytes=%d stalled.ms=%d level=%s shed=%d dropped=%d",
+                h.getUsername(), h.getQueueDepth(), h.getQueuedBytes(), stalled, h.lagLevel, h.getShedCount(),
+                h.getDroppedCount());
+    }
+}
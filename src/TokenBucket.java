@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as a single "theoretical arrival time" (GCRA):
+ * each admitted event pushes it forward by one refill interval, and an event
+ * is allowed while it is no more than {@code burst} intervals ahead of now.
+ * That is the same as a bucket of {@code burst} tokens refilled at
+ * {@code rate}, in one CAS and with no refill timer.
+ */
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+    /** A rate of zero or less makes a bucket that never limits. */
+    public TokenBucket(double perSecond, int burst) {
+        this.intervalNanos = perSecond > 0 ? Math.max(1, (long) (1e9 / perSecond)) : 0;
+        this.capacityNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Takes a token if one is available. Returns 0 on success, otherwise the
+     * nanos until one will be, without taking anything.
+     */
+    public long tryAcquire(long now) {
+        if (intervalNanos == 0)
+            return 0;
+        while (true) {
+            long t = tat.get();
+            long next = Math.max(t, now) + intervalNanos;
+            long wait = next - now - capacityNanos;
+            if (wait > 0)
+                return wait;
+            if (tat.compareAndSet(t, next))
+                return 0;
+        }
+    }
+
+    /**
+     * Always takes a token, borrowing from the future if the bucket is empty,
+     * and returns how long the caller must wait before using it (0 if none).
+     * Successive reservations come due in the order they were made.
+     */
+    public long reserve(long now) {
+        if (intervalNanos == 0)
+            return 0;
+        while (true) {
+            long t = tat.get();
+            long next = Math.max(t, now) + intervalNanos;
+            if (tat.compareAndSet(t, next))
+                return Math.max(0, next - now - capacityNanos);
+        }
+    }
+
+    /** Gives back a token taken by {@link #tryAcquire} or {@link #reserve} that went unused. */
+    public void refund() {
+        if (intervalNanos != 0)
+            tat.addAndGet(-intervalNanos);
+    }
+}
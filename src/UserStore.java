@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Username/password store. Lookups hit a concurrent map; registrations are
+ * appended as "user:password" lines to a journal by a single writer thread
+ * that syncs once per batch. Once the journal holds enough entries, or has
+ * held any for long enough, the writer rewrites the snapshot file from the map
+ * and truncates the journal.
+ *
+ * A registration is visible immediately but only durable once its batch has
+ * been synced, typically within milliseconds.
+ */
+public class UserStore implements Closeable {
+    private static final int COMPACT_EVERY = Integer.getInteger("chat.users.compactEvery", 100_000);
+    private static final long COMPACT_INTERVAL_NANOS = Long.getLong("chat.users.compactIntervalMs", 600_000) * 1_000_000;
+
+    private final Path snapshot;
+    private final Path journal;
+    private final ConcurrentHashMap<String, String> users;
+    private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileChannel journalOut;
+    private int journalEntries;
+    private volatile boolean closed;
+
+    public UserStore(Path snapshot, Path journal) throws IOException {
+        this.snapshot = snapshot;
+        this.journal = journal;
+        // sized from the files so loading never rehashes; ~20 bytes per "user:password" line
+        long bytes = (Files.exists(snapshot) ? Files.size(snapshot) : 0) + (Files.exists(journal) ? Files.size(journal) : 0);
+        users = new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE >> 2, Math.max(16, bytes / 20)));
+        if (Files.exists(snapshot))
+            parse(snapshot, users::put, true);
+        long valid = 0;
+        if (Files.exists(journal)) {
+            int[] n = { 0 };
+            valid = parse(journal, (u, p) -> {
+                users.put(u, p);
+                n[0]++;
+            }, false);
+            journalEntries = n[0];
+        }
+        journalOut = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // a crash mid-append leaves an unterminated line; drop it
+        journalOut.truncate(valid);
+        journalOut.position(valid);
+        writer = Thread.ofVirtual().name("users-journal").start(this::writeLoop);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public boolean authenticate(String u, String p) {
+        return p.equals(users.get(u));
+    }
+
+    /** False for names the "user:password" line format cannot store. */
+    public static boolean isValidUsername(String u) {
+        return !u.isEmpty() && u.indexOf(':') < 0 && u.indexOf('\n') < 0 && u.indexOf('\r') < 0;
+    }
+
+    public static boolean isValidPassword(String p) {
+        return p.indexOf('\n') < 0 && p.indexOf('\r') < 0;
+    }
+
+    /** Returns false if the name is taken or cannot be stored in the line format. */
+    public boolean register(String u, String p) {
+        if (!isValidUsername(u) || !isValidPassword(p))
+            return false;
+        if (users.putIfAbsent(u, p) != null)
+            return false;
+        pending.add(u + ":" + p + "\n");
+        return true;
+    }
+
+    /** Sets a user's password whether or not the name is taken; the journal's later line wins on load. */
+    public void replace(String u, String p) {
+        if (!isValidUsername(u) || !isValidPassword(p) || p.equals(users.put(u, p)))
+            return;
+        pending.add(u + ":" + p + "\n");
+    }
+
+    String passwordOf(String u) {
+        return users.get(u);
+    }
+
+    /** A live view of every user and password, for copying the store to another node. */
+    Set<Map.Entry<String, String>> entries() {
+        return Collections.unmodifiableMap(users).entrySet();
+    }
+
+    /**
+     * Streams "user:password" lines without materializing the file. Returns the
+     * length of the newline-terminated prefix; an unterminated last line is only
+     * parsed if {@code lastLineComplete} (snapshots may be hand-edited, journal
+     * tails may be torn).
+     */
+    static long parse(Path file, BiConsumer<String, String> sink, boolean lastLineComplete) throws IOException {
+        long consumed = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int start = 0, end = 0, n;
+            while ((n = in.read(buf, end, buf.length - end)) > 0) {
+                end += n;
+                int lineStart = 0;
+                for (int i = start; i < end; i++) {
+                    if (buf[i] != '\n')
+                        continue;
+                    parseLine(buf, lineStart, i, sink);
+                    consumed += i + 1 - lineStart;
+                    lineStart = i + 1;
+                }
+                // keep the partial line at the front of the buffer
+                int rest = end - lineStart;
+                if (rest == buf.length)
+                    buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+                System.arraycopy(buf, lineStart, buf, 0, rest);
+                start = end = rest;
+            }
+            if (lastLineComplete && end > 0)
+                parseLine(buf, 0, end, sink);
+        }
+        return consumed;
+    }
+
+    private static void parseLine(byte[] b, int from, int to, BiConsumer<String, String> sink) {
+        if (to > from && b[to - 1] == '\r')
+            to--;
+        for (int i = from; i < to; i++) {
+            if (b[i] == ':') {
+                sink.accept(new String(b, from, i - from, StandardCharsets.UTF_8),
+                        new String(b, i + 1, to - i - 1, StandardCharsets.UTF_8));
+                return;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        long compactedAt = System.nanoTime();
+        try {
+            while (!closed || !pending.isEmpty()) {
+                String first = pending.poll(200, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch);
+                    StringBuilder sb = new StringBuilder(batch.size() * 32);
+                    for (String line : batch)
+                        sb.append(line);
+                    ByteBuffer b = StandardCharsets.UTF_8.encode(sb.toString());
+                    while (b.hasRemaining())
+                        journalOut.write(b);
+                    journalOut.force(false);
+                    journalEntries += batch.size();
+                    batch.clear();
+                }
+                // the interval keeps a trickle of registrations from growing the journal forever
+                if (journalEntries >= COMPACT_EVERY
+                        || journalEntries > 0 && System.nanoTime() - compactedAt >= COMPACT_INTERVAL_NANOS) {
+                    compact();
+                    compactedAt = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            System.err.println("User journal failed: " + e);
+        }
+    }
+
+    /**
+     * Writes the map to a new snapshot and empties the journal. Every journaled
+     * user was in the map before it was journaled, so the weakly consistent
+     * iteration is guaranteed to include it.
+     */
+    private void compact() throws IOException {
+        long t0 = System.nanoTime();
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(tmp), StandardCharsets.UTF_8), 256 * 1024)) {
+            for (var e : users.entrySet()) {
+                w.write(e.getKey());
+                w.write(':');
+                w.write(e.getValue());
+                w.write('\n');
+            }
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalOut.truncate(0);
+        journalOut.position(0);
+        journalOut.force(true);
+        System.out.println("Compacted " + journalEntries + " journal entries into " + snapshot + " ("
+                + users.size() + " users, " + (System.nanoTime() - t0) / 1_000_000 + " ms)");
+        journalEntries = 0;
+    }
+
+    /** Waits for queued registrations to be synced. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(10_000);
+            journalOut.close();
+        } catch (InterruptedException | IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Bytes allocated and CPU time per broadcast, comparing the old fan-out (one
+ * autoflushing PrintWriter per member, each encoding the String itself) with
+ * encode-once frames copied to each member's stream.
+ *
+ * Usage: java -cp build BroadcastAllocBench [members] [messageChars]
+ */
+public class BroadcastAllocBench {
+    /** Discards bytes but counts write calls, standing in for a socket. */
+    static class CountingSink extends OutputStream {
+        long writes;
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            writes++;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+            bytes += len;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int chars = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        String msg = "alice: " + "é".repeat(chars / 10) + "x".repeat(chars - chars / 10);
+        int rounds = 20_000;
+
+        CountingSink[] oldSinks = new CountingSink[members];
+        CountingSink[] newSinks = new CountingSink[members];
+        PrintWriter[] writers = new PrintWriter[members];
+        for (int i = 0; i < members; i++) {
+            oldSinks[i] = new CountingSink();
+            newSinks[i] = new CountingSink();
+            writers[i] = new PrintWriter(oldSinks[i], true);
+        }
+        byte[] scratch = new byte[16 * 1024];
+
+        System.out.printf("%d members, %d-char message, %d broadcasts%n", members, chars, rounds);
+        System.out.printf("%-12s %16s %16s %14s%n", "path", "bytes/broadcast", "ns/broadcast", "writes/member");
+        int passes = 3;
+        for (int pass = 0; pass < passes; pass++) {
+            boolean last = pass == passes - 1;
+            long[] before = snapshot();
+            for (int r = 0; r < rounds; r++)
+                for (PrintWriter pw : writers)
+                    pw.println(msg);
+            long[] after = snapshot();
+            if (last)
+                report("per-member", before, after, rounds, oldSinks[0].writes / ((double) passes * rounds));
+
+            before = snapshot();
+            for (int r = 0; r < rounds; r++) {
+                ByteBuffer frame = ClientHandler.encodeLine(msg);
+                for (CountingSink s : newSinks)
+                    ClientHandler.writeFrame(frame, scratch, s);
+            }
+            after = snapshot();
+            if (last)
+                report("encode-once", before, after, rounds, newSinks[0].writes / ((double) passes * rounds));
+        }
+    }
+
+    private static long[] snapshot() {
+        return new long[] { THREADS.getCurrentThreadAllocatedBytes(), THREADS.getCurrentThreadCpuTime() };
+    }
+
+    private static void report(String path, long[] before, long[] after, int rounds, double writesPerMember) {
+        System.out.printf("%-12s %16d %16d %14.1f%n", path,
+                (after[0] - before[0]) / rounds, (after[1] - before[1]) / rounds, writesPerMember);
+    }
+}
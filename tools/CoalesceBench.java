@@ -0,0 +1,106 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * TLS records (= socket writes) per message for one blocking-mode connection
+ * under bursty load, with write coalescing on and off, plus the latency of a
+ * single message sent to an idle connection.
+ *
+ * Usage: java -cp build CoalesceBench [bursts] [burstSize] [messageChars]
+ * Each configuration runs in a child JVM, since the settings are read once.
+ */
+public class CoalesceBench {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("run")) {
+            run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String cp = System.getProperty("java.class.path");
+        String[][] configs = {
+                { "off", "-Dchat.outbound.coalesceBytes=0" },
+                { "on", "-Dchat.outbound.coalesceBytes=16384" },
+        };
+        System.out.printf("%-8s %10s %12s %14s %14s%n", "coalesce", "messages", "records/msg", "burst ms", "idle p50 us");
+        for (String[] c : configs) {
+            List<String> cmd = new ArrayList<>(List.of(java, c[1], "-cp", cp, "CoalesceBench", "run", c[0]));
+            cmd.addAll(List.of(args));
+            Process p = new ProcessBuilder(cmd).redirectErrorStream(true).inheritIO().start();
+            p.waitFor();
+        }
+    }
+
+    private static void run(String[] args) throws Exception {
+        String label = args[0];
+        int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int burstSize = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int chars = args.length > 3 ? Integer.parseInt(args[3]) : 80;
+        SSLContext ctx = context();
+
+        SSLServerSocket ss = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        SSLSocket client = (SSLSocket) ctx.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+        Thread.startVirtualThread(() -> {
+            try {
+                client.startHandshake();
+            } catch (IOException ignored) {
+            }
+        });
+        SSLSocket server = (SSLSocket) ss.accept();
+        ClientHandler h = new ClientHandler(server);
+        Thread.startVirtualThread(h);
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        in.readLine(); // welcome
+        in.readLine(); // prompt
+
+        String msg = "x".repeat(chars);
+        long records0 = ClientHandler.getRecordsWritten();
+        long frames0 = ClientHandler.getFramesWritten();
+        long t0 = System.nanoTime();
+        for (int b = 0; b < bursts; b++) {
+            for (int i = 0; i < burstSize; i++)
+                h.sendMessage(msg);
+            for (int i = 0; i < burstSize; i++)
+                in.readLine();
+        }
+        long burstNanos = System.nanoTime() - t0;
+        long records = ClientHandler.getRecordsWritten() - records0;
+        long frames = ClientHandler.getFramesWritten() - frames0;
+
+        // one message at a time on an otherwise idle connection
+        long[] lat = new long[500];
+        for (int i = 0; i < lat.length; i++) {
+            Thread.sleep(2);
+            long s = System.nanoTime();
+            h.sendMessage(msg);
+            in.readLine();
+            lat[i] = System.nanoTime() - s;
+        }
+        Arrays.sort(lat);
+        System.out.printf("%-8s %10d %12.3f %14.1f %14.1f%n", label, frames, (double) records / frames,
+                burstNanos / 1e6, lat[lat.length / 2] / 1e3);
+        client.close();
+        System.exit(0);
+    }
+
+    private static SSLContext context() throws Exception {
+        char[] pass = "changeit".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream("certs/serverkeystore.jks")) {
+            ks.load(fis, pass);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, pass);
+        KeyStore ts = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream("certs/clienttruststore.jks")) {
+            ts.load(fis, pass);
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ts);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return ctx;
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+
+/**
+ * Headless load generator: thousands of simulated users, one virtual thread
+ * each, speaking the real TLS text protocol. Every user registers, joins a
+ * room, and chats at a Poisson rate. Churn events make users drop the
+ * connection and resume with TOKEN, EXIT to another room, or LOGOUT and
+ * AUTH again. Each chat line carries its send time (System.nanoTime), so
+ * every member that receives it yields one end-to-end delivery latency.
+ * Messages replayed after a TOKEN resume are counted apart from live ones.
+ *
+ * Usage: java -cp build LoadGen [key=value ...]
+ *
+ *   host=localhost port=12345   server to load; ignored with spawn. A comma
+ *                               list of ports (cluster nodes on one host)
+ *                               spreads the users over them round-robin
+ *   spawn=threads|nio           start a server child in a scratch directory
+ *   nodes=1                     with spawn: start this many servers as one
+ *                               cluster and spread the users over them
+ *   pin=false                   with spawn: pin node n to CPU n+1 with taskset,
+ *                               leaving CPU 0 for this process (run it under
+ *                               taskset -c 0), so nodes scale on separate cores
+ *   clients=1000                simulated users
+ *   rooms=100                   rooms to spread them over
+ *   dist=uniform|zipf           room popularity; zipf uses exponent s
+ *   s=1.0
+ *   aiRooms=0                   how many of the rooms are AI_ rooms
+ *   rate=0.2                    messages per second per user
+ *   churn=1                     churn events per user per minute (0 = none)
+ *   duration=60 report=5        seconds
+ *   rampMs=10000                spread the initial connects over this long
+ *   stub=-1                     >= 0 starts StubOllama with that latency (ms)
+ *   stubTokenMs=20 stubWords=20
+ *
+ * Run from the repository root (the client truststore is read from certs/).
+ * Large runs need a raised open-file limit (ulimit -n) on both sides.
+ */
+public class LoadGen {
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder replayed = new LongAdder();
+    private static final LongAdder gaps = new LongAdder();
+    private static final LongAdder botReplies = new LongAdder();
+    private static final LongAdder connects = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final Histogram total = new Histogram();
+    private static final AtomicReference<Histogram> interval = new AtomicReference<>(new Histogram());
+
+    private static Map<String, String> opts;
+    private static SSLSocketFactory factory;
+    private static String host;
+    private static int[] ports;
+    private static String[] roomNames;
+    private static double[] roomCdf;
+    private static double rate;
+    private static double churnPerSec;
+    private static long deadline;
+    private static volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        opts = new HashMap<>();
+        for (String a : args) {
+            int i = a.indexOf('=');
+            if (i < 0)
+                throw new IllegalArgumentException("expected key=value, got " + a);
+            opts.put(a.substring(0, i), a.substring(i + 1));
+        }
+        int clients = intOpt("clients", 1000);
+        int rooms = intOpt("rooms", 100);
+        int aiRooms = intOpt("aiRooms", 0);
+        rate = doubleOpt("rate", 0.2);
+        churnPerSec = doubleOpt("churn", 1) / 60;
+        int duration = intOpt("duration", 60);
+        int report = intOpt("report", 5);
+        long rampNanos = intOpt("rampMs", 10_000) * 1_000_000L;
+        host = opts.getOrDefault("host", "localhost");
+        ports = Arrays.stream(opts.getOrDefault("port", "12345").split(",")).mapToInt(Integer::parseInt).toArray();
+        String spawn = opts.get("spawn");
+        int nodes = intOpt("nodes", 1);
+        boolean pin = Boolean.parseBoolean(opts.getOrDefault("pin", "false"));
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if (pin && cpus < nodes + 1)
+            System.out.println("pin: only " + cpus + " CPU(s) for " + nodes + " node(s) and the load generator; nodes will share cores");
+
+        String run = "lg" + Long.toString(System.nanoTime() % 1_000_000, 36) + "_";
+        StubOllama stub = null;
+        int stubLatency = intOpt("stub", -1);
+        if (stubLatency >= 0) {
+            stub = new StubOllama(stubLatency, intOpt("stubTokenMs", 20), intOpt("stubWords", 20)).start(0);
+            System.out.println("StubOllama on port " + stub.getPort()
+                    + (spawn == null ? " (start the server with -Dchat.llm.url=http://localhost:" + stub.getPort() + "/api/chat)" : ""));
+        }
+        List<Process> servers = new ArrayList<>();
+        if (spawn != null) {
+            host = "localhost";
+            int base = 20000 + new Random().nextInt(10000);
+            ports = new int[nodes];
+            StringJoiner members = new StringJoiner(",");
+            for (int n = 0; n < nodes; n++) {
+                ports[n] = base + n;
+                members.add("localhost:" + (base + 10000 + n));
+            }
+            for (int n = 0; n < nodes; n++) {
+                List<String> jvm = new ArrayList<>();
+                if (stub != null)
+                    jvm.add("-Dchat.llm.url=http://localhost:" + stub.getPort() + "/api/chat");
+                if (nodes > 1)
+                    jvm.addAll(List.of("-Dchat.cluster.self=localhost:" + (base + 10000 + n),
+                            "-Dchat.cluster.nodes=" + members, "-Dchat.cluster.secret=" + run + "secret"));
+                List<String> prefix = pin ? List.of("taskset", "-c", String.valueOf((n + 1) % cpus)) : List.of();
+                servers.add(TransportBench.startServer(prefix, spawn, ports[n], jvm.toArray(new String[0])));
+            }
+            for (int p : ports)
+                awaitListening(p);
+            if (nodes > 1)
+                Thread.sleep(2000); // let the links come up before rooms are created
+        }
+
+        roomNames = new String[rooms];
+        for (int i = 0; i < rooms; i++)
+            roomNames[i] = (i < aiRooms ? "AI_" : "") + run + "room" + i;
+        roomCdf = cdf(rooms, opts.getOrDefault("dist", "uniform"), doubleOpt("s", 1.0));
+        factory = TransportBench.clientContext().getSocketFactory();
+
+        System.out.printf("%d clients on %d node(s), %d rooms (%d AI, %s), %.2f msg/s each, %.1f churn/min each, %d s%n",
+                clients, ports.length, rooms, aiRooms, opts.getOrDefault("dist", "uniform"), rate, churnPerSec * 60,
+                duration);
+        long start = System.nanoTime();
+        deadline = start + rampNanos + duration * 1_000_000_000L;
+        List<Client> all = new ArrayList<>(clients);
+        try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                Client c = new Client(run + i, ports[i % ports.length], start + rampNanos * i / clients);
+                all.add(c);
+                ex.execute(c::run);
+            }
+            long prevSent = 0, prevDelivered = 0, prevT = start;
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(report * 1000L);
+                long now = System.nanoTime();
+                long s = sent.sum(), d = delivered.sum();
+                double secs = (now - prevT) / 1e9;
+                Histogram h = interval.getAndSet(new Histogram());
+                int online = 0;
+                for (Client c : all)
+                    if (c.online)
+                        online++;
+                System.out.printf("%5ds online %6d  sent %8.0f/s  delivered %9.0f/s  p50 %7.2f  p99 %7.2f  p999 %7.2f ms%n",
+                        (now - start) / 1_000_000_000L, online, (s - prevSent) / secs, (d - prevDelivered) / secs,
+                        h.percentile(0.50) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3);
+                prevSent = s;
+                prevDelivered = d;
+                prevT = now;
+            }
+            stopping = true;
+            for (Client c : all)
+                c.close();
+        } finally {
+            long secs = Math.max(1, (System.nanoTime() - start - rampNanos) / 1_000_000_000L);
+            System.out.printf("total: sent %d (%.0f/s), delivered %d (%.0f/s), fan-out %.1f%n",
+                    sent.sum(), sent.sum() / (double) secs, delivered.sum(), delivered.sum() / (double) secs,
+                    sent.sum() == 0 ? 0 : delivered.sum() / (double) sent.sum());
+            System.out.printf("latency ms: p50 %.2f  p99 %.2f  p999 %.2f  max %.2f%n", total.percentile(0.50) / 1e3,
+                    total.percentile(0.99) / 1e3, total.percentile(0.999) / 1e3, total.max() / 1e3);
+            System.out.printf("connects %d, errors %d, replayed after resume %d, gaps %d, bot replies %d%n",
+                    connects.sum(), errors.sum(), replayed.sum(), gaps.sum(), botReplies.sum());
+            if (stub != null)
+                System.out.println("LLM requests served by stub: " + stub.getRequestCount());
+            for (Process server : servers)
+                server.destroy();
+            if (stub != null)
+                stub.stop();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new java.net.Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        System.err.println("server not listening on " + port + " after 10 s");
+    }
+
+    private static int intOpt(String k, int def) {
+        return opts.containsKey(k) ? Integer.parseInt(opts.get(k)) : def;
+    }
+
+    private static double doubleOpt(String k, double def) {
+        return opts.containsKey(k) ? Double.parseDouble(opts.get(k)) : def;
+    }
+
+    /** Cumulative room-choice probabilities; zipf makes room i weigh 1/(i+1)^s. */
+    private static double[] cdf(int n, String dist, double s) {
+        double[] w = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += w[i] = "zipf".equals(dist) ? 1 / Math.pow(i + 1, s) : 1;
+        double acc = 0;
+        for (int i = 0; i < n; i++)
+            w[i] = (acc += w[i]) / sum;
+        return w;
+    }
+
+    private static String pickRoom() {
+        int i = Arrays.binarySearch(roomCdf, ThreadLocalRandom.current().nextDouble());
+        return roomNames[Math.min(roomCdf.length - 1, i < 0 ? -i - 1 : i)];
+    }
+
+    /** Exponentially distributed wait with the given mean rate, in nanos. */
+    private static long nextGap(double perSec) {
+        if (perSec <= 0)
+            return Long.MAX_VALUE / 4;
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / perSec * 1e9);
+    }
+
+    private static void record(long nanos) {
+        long us = nanos / 1000;
+        total.record(us);
+        interval.get().record(us);
+        delivered.increment();
+    }
+
+    static class Client {
+        final String user;
+        final int port;
+        final long startAt;
+        SSLSocket sock;
+        BufferedReader in;
+        PrintWriter out;
+        String token;
+        String room;
+        volatile long lastSeq;
+        boolean registered;
+        volatile boolean online;
+
+        Client(String user, int port, long startAt) {
+            this.user = user;
+            this.port = port;
+            this.startAt = startAt;
+        }
+
+        void run() {
+            try {
+                sleepUntil(startAt);
+                while (!stopping && System.nanoTime() < deadline) {
+                    try {
+                        session();
+                    } catch (IOException e) {
+                        if (stopping)
+                            return;
+                        if (errors.sum() < 5)
+                            System.err.println(user + ": " + e);
+                        errors.increment();
+                        closeSocket();
+                        Thread.sleep(100 + ThreadLocalRandom.current().nextInt(400));
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        /** One connection: log in or resume, chat until a churn event or the deadline. */
+        private void session() throws IOException, InterruptedException {
+            connect();
+            Thread reader = Thread.ofVirtual().start(this::readLoop);
+            long now = System.nanoTime();
+            long nextMsg = now + nextGap(rate);
+            long nextChurn = now + nextGap(churnPerSec);
+            while (!stopping) {
+                long wake = Math.min(Math.min(nextMsg, nextChurn), deadline);
+                sleepUntil(wake);
+                if (stopping || wake == deadline)
+                    break;
+                if (wake == nextMsg) {
+                    send("LG " + System.nanoTime());
+                    sent.increment();
+                    nextMsg += nextGap(rate);
+                    continue;
+                }
+                nextChurn = System.nanoTime() + nextGap(churnPerSec);
+                int action = ThreadLocalRandom.current().nextInt(10);
+                if (action < 4) {
+                    // drop the connection; the next session resumes with TOKEN
+                    closeSocket();
+                    reader.join();
+                    return;
+                }
+                if (action < 8) {
+                    send("EXIT");
+                    room = pickRoom();
+                    lastSeq = 0;
+                    send(room);
+                    continue;
+                }
+                send("LOGOUT");
+                reader.join();
+                token = null;
+                room = null;
+                closeSocket();
+                return;
+            }
+            closeSocket();
+            reader.join();
+        }
+
+        private void connect() throws IOException {
+            sock = (SSLSocket) factory.createSocket(host, port);
+            sock.startHandshake();
+            in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8), true);
+            in.readLine(); // welcome
+            in.readLine(); // prompt
+            // ask for "MSG <seq>" lines; resumes and the latency check depend on them
+            send("SEQ");
+            if (!"SEQ_OK".equals(in.readLine()))
+                throw new IOException(user + ": server does not support SEQ");
+            connects.increment();
+            if (token != null) {
+                send("TOKEN " + token + " " + lastSeq);
+                String r = in.readLine();
+                if ("RECONNECT_OK".equals(r)) {
+                    // MSG lines up to JOINED are the ring replay of what was missed
+                    awaitJoined(true);
+                    online = true;
+                    return;
+                }
+                in.readLine(); // prompt; the session expired, log in again
+                token = null;
+            }
+            send((registered ? "AUTH " : "REGISTER ") + user + " pw");
+            String r = in.readLine();
+            if (!"AUTH_OK".equals(r))
+                throw new IOException(user + ": " + r);
+            registered = true;
+            token = in.readLine().substring(6);
+            room = pickRoom();
+            lastSeq = 0;
+            send(room);
+            awaitJoined(false);
+            online = true;
+        }
+
+        private void awaitJoined(boolean resuming) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("JOINED")) {
+                if (resuming && line.startsWith("MSG ")) {
+                    lastSeq = Long.parseLong(line.substring(4, line.indexOf(' ', 4)));
+                    replayed.increment();
+                } else if (line.startsWith("GAP ")) {
+                    gaps.increment();
+                }
+            }
+            if (line == null)
+                throw new EOFException(user + ": closed before JOINED");
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("MSG "))
+                        continue; // history, JOINED, LOGOUT_OK
+                    long now = System.nanoTime();
+                    int sp = line.indexOf(' ', 4);
+                    lastSeq = Long.parseLong(line.substring(4, sp));
+                    int i = line.indexOf(": LG ", sp);
+                    if (i > 0)
+                        record(now - Long.parseLong(line.substring(i + 5)));
+                    else if (line.startsWith("Bot: ", sp + 1) || line.startsWith("BOT_END", sp + 1))
+                        botReplies.increment(); // whole reply, or the end of a streamed one
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // socket closed by a churn event or at the end of the run
+            } finally {
+                online = false;
+            }
+        }
+
+        private synchronized void send(String line) {
+            out.println(line);
+        }
+
+        private void closeSocket() {
+            online = false;
+            try {
+                if (sock != null)
+                    sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            closeSocket();
+        }
+
+        private static void sleepUntil(long nanoTime) throws InterruptedException {
+            long d = nanoTime - System.nanoTime();
+            if (d > 0)
+                Thread.sleep(d / 1_000_000, (int) (d % 1_000_000));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AUTH-path latency (isLoggedIn + token lookup) against the number of live
+ * sessions, for SessionRegistry and for the previous HashMap + global lock +
+ * linear scan design.
+ *
+ * Usage: java -cp build SessionBench [maxSessions]
+ */
+public class SessionBench {
+    /** The pre-registry implementation, kept here only as a baseline. */
+    static class LegacySessions {
+        private final Map<String, Session> sessions = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        String create(String username) {
+            Session s = new Session(UUID.randomUUID().toString(), username, null);
+            lock.lock();
+            try {
+                sessions.put(s.token, s);
+            } finally {
+                lock.unlock();
+            }
+            return s.token;
+        }
+
+        Session get(String token) {
+            lock.lock();
+            try {
+                Session s = sessions.get(token);
+                if (s == null || s.isExpired()) {
+                    sessions.remove(token);
+                    return null;
+                }
+                return s;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isLoggedIn(String username) {
+            lock.lock();
+            try {
+                return sessions.values().stream()
+                        .anyMatch(s -> s.username.equals(username) && !s.isExpired());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int max = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        System.out.printf("%-10s %10s %10s %10s %10s%n", "impl", "sessions", "p50 ns", "p99 ns", "mean ns");
+        for (int n = 1_000; n <= max; n *= 10) {
+            benchRegistry(n);
+            benchLegacy(n);
+        }
+    }
+
+    private static void benchRegistry(int n) {
+        SessionRegistry reg = new SessionRegistry().start();
+        String[] users = usernames(n);
+        String[] tokens = new String[n];
+        for (int i = 0; i < n; i++)
+            tokens[i] = reg.create(users[i], null).token;
+        Random rnd = new Random(42);
+        int ops = 200_000;
+        long[] lat = new long[ops];
+        for (int warm = 0; warm < 2; warm++) {
+            for (int i = 0; i < ops; i++) {
+                int k = rnd.nextInt(n);
+                long t0 = System.nanoTime();
+                boolean in = reg.isLoggedIn(users[k]) && reg.get(tokens[k]) != null;
+                lat[i] = System.nanoTime() - t0;
+                if (!in)
+                    throw new IllegalStateException("lost session " + k);
+            }
+        }
+        reg.stop();
+        report("registry", n, lat);
+    }
+
+    private static void benchLegacy(int n) {
+        LegacySessions legacy = new LegacySessions();
+        String[] users = usernames(n);
+        String[] tokens = new String[n];
+        for (int i = 0; i < n; i++)
+            tokens[i] = legacy.create(users[i]);
+        Random rnd = new Random(42);
+        // linear scans get slow quickly; keep total work roughly constant
+        int ops = Math.max(200, 20_000_000 / n);
+        long[] lat = new long[ops];
+        for (int warm = 0; warm < 2; warm++) {
+            for (int i = 0; i < ops; i++) {
+                int k = rnd.nextInt(n);
+                long t0 = System.nanoTime();
+                boolean in = legacy.isLoggedIn(users[k]) && legacy.get(tokens[k]) != null;
+                lat[i] = System.nanoTime() - t0;
+                if (!in)
+                    throw new IllegalStateException("lost session " + k);
+            }
+        }
+        report("legacy", n, lat);
+    }
+
+    private static String[] usernames(int n) {
+        String[] users = new String[n];
+        for (int i = 0; i < n; i++)
+            users[i] = "user" + i;
+        return users;
+    }
+
+    private static void report(String impl, int n, long[] lat) {
+        long sum = 0;
+        for (long l : lat)
+            sum += l;
+        Arrays.sort(lat);
+        System.out.printf("%-10s %10d %10d %10d %10d%n", impl, n,
+                lat[lat.length / 2], lat[(int) (lat.length * 0.99)], sum / lat.length);
+    }
+}
@@ -0,0 +1,99 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal stand-in for Ollama's /api/chat endpoint, for exercising AI rooms
+ * without a model. Replies with a fixed number of words after a configurable
+ * delay and honours "stream":true by emitting NDJSON chunks.
+ *
+ * Usage: java -cp build StubOllama [port] [latencyMs] [tokenDelayMs] [words]
+ */
+public class StubOllama {
+    private final int latencyMs;
+    private final int tokenDelayMs;
+    private final int words;
+    private final AtomicLong requests = new AtomicLong();
+    private HttpServer server;
+
+    public StubOllama(int latencyMs, int tokenDelayMs, int words) {
+        this.latencyMs = latencyMs;
+        this.tokenDelayMs = tokenDelayMs;
+        this.words = words;
+    }
+
+    public StubOllama start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/api/chat", this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        long n = requests.incrementAndGet();
+        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        boolean stream = body.contains("\"stream\":true");
+        try {
+            Thread.sleep(latencyMs);
+            if (stream) {
+                ex.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < words; i++) {
+                        String word = (i == 0 ? "" : " ") + "stub" + n + "-" + i;
+                        os.write(chunk(word, false));
+                        os.flush();
+                        if (tokenDelayMs > 0)
+                            Thread.sleep(tokenDelayMs);
+                    }
+                    os.write(chunk("", true));
+                }
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < words; i++)
+                    sb.append(i == 0 ? "" : " ").append("stub").append(n).append('-').append(i);
+                byte[] out = chunk(sb.toString(), true);
+                ex.getResponseHeaders().set("Content-Type", "application/json");
+                ex.sendResponseHeaders(200, out.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(out);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static byte[] chunk(String content, boolean done) {
+        return ("{\"model\":\"stub\",\"message\":{\"role\":\"assistant\",\"content\":\"" + content
+                + "\"},\"done\":" + done + "}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 11434;
+        int latency = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int tokenDelay = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int words = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        StubOllama stub = new StubOllama(latency, tokenDelay, words).start(port);
+        System.out.println("StubOllama listening on port " + stub.getPort());
+    }
+}
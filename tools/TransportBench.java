@@ -0,0 +1,252 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+
+/**
+ * Compares server transports: starts a ChatServer child process in the given
+ * mode, parks N authenticated clients in rooms, reports the server's memory per
+ * idle connection, then measures broadcast delivery latency across all rooms.
+ *
+ * Usage: java -cp build TransportBench <threads|nio> [connections] [roomSize] [messagesPerRoom]
+ *
+ * Large runs (e.g. 50k) need a raised open-file limit (ulimit -n) on both sides.
+ */
+public class TransportBench {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "threads";
+        int conns = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int roomSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int port = 20000 + new Random().nextInt(10000);
+
+        Process server = startServer(mode, port);
+        try {
+            long[] before = serverMemory(server.pid());
+            SSLSocketFactory sf = clientContext().getSocketFactory();
+            String prefix = "tb" + Long.toString(System.nanoTime() % 1_000_000, 36) + "_";
+
+            List<Client> clients = new ArrayList<>(conns);
+            CountDownLatch joined = new CountDownLatch(conns);
+            long t0 = System.nanoTime();
+            try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+                Semaphore connecting = new Semaphore(200);
+                for (int i = 0; i < conns; i++) {
+                    Client c = new Client(prefix + i, "room" + (i / roomSize));
+                    clients.add(c);
+                    ex.execute(() -> {
+                        try {
+                            connecting.acquire();
+                            try {
+                                c.connect(sf, port);
+                            } finally {
+                                connecting.release();
+                            }
+                            joined.countDown();
+                            c.readLoop();
+                        } catch (Exception e) {
+                            if (!c.closed) {
+                                System.err.println(c.user + ": " + e);
+                                joined.countDown();
+                            }
+                        }
+                    });
+                }
+                joined.await();
+                System.out.printf("%s: %d connections joined in %d ms%n", mode, conns, (System.nanoTime() - t0) / 1_000_000);
+
+                Thread.sleep(2000);
+                long[] after = serverMemory(server.pid());
+                System.out.printf("server RSS   %8.1f KiB/connection%n", (after[0] - before[0]) / 1024.0 / conns);
+                System.out.printf("server heap  %8.1f KiB/connection (live objects)%n", (after[1] - before[1]) / 1024.0 / conns);
+
+                // one sender per room, all rooms concurrently
+                Map<String, Client> senders = new LinkedHashMap<>();
+                for (Client c : clients)
+                    senders.putIfAbsent(c.room, c);
+                int expected = 0;
+                for (Client c : clients)
+                    if (senders.get(c.room) != c)
+                        expected++;
+                expected *= messages;
+                Latencies.expect(expected);
+                for (int m = 0; m < messages; m++) {
+                    for (Client s : senders.values())
+                        s.send("LAT " + System.nanoTime());
+                    Thread.sleep(100);
+                }
+                Latencies.await(30_000);
+                Latencies.report();
+                for (Client c : clients)
+                    c.close();
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    static class Latencies {
+        private static final ConcurrentLinkedQueue<Long> samples = new ConcurrentLinkedQueue<>();
+        private static CountDownLatch done;
+
+        static void expect(int n) {
+            done = new CountDownLatch(n);
+        }
+
+        static void record(long nanos) {
+            samples.add(nanos);
+            done.countDown();
+        }
+
+        static void await(long ms) throws InterruptedException {
+            if (!done.await(ms, TimeUnit.MILLISECONDS))
+                System.out.println("timed out with " + done.getCount() + " deliveries missing");
+        }
+
+        static void report() {
+            long[] l = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (l.length == 0)
+                return;
+            System.out.printf("broadcast    %d deliveries  p50 %.2f ms  p99 %.2f ms  p999 %.2f ms  max %.2f ms%n",
+                    l.length, l[l.length / 2] / 1e6, l[(int) (l.length * 0.99)] / 1e6,
+                    l[(int) (l.length * 0.999)] / 1e6, l[l.length - 1] / 1e6);
+        }
+    }
+
+    static class Client {
+        final String user;
+        final String room;
+        SSLSocket sock;
+        BufferedReader in;
+        PrintWriter out;
+        volatile boolean closed;
+
+        Client(String user, String room) {
+            this.user = user;
+            this.room = room;
+        }
+
+        void connect(SSLSocketFactory sf, int port) throws IOException {
+            sock = (SSLSocket) sf.createSocket("localhost", port);
+            sock.startHandshake();
+            in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8), true);
+            in.readLine();
+            in.readLine();
+            out.println("REGISTER " + user + " pw");
+            expect("AUTH_OK");
+            in.readLine(); // TOKEN
+            out.println(room);
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("JOINED"))
+                ;
+        }
+
+        private void expect(String want) throws IOException {
+            String got = in.readLine();
+            if (!want.equals(got))
+                throw new IOException("expected " + want + ", got " + got);
+        }
+
+        void readLoop() throws IOException {
+            String line;
+            while (!closed && (line = in.readLine()) != null) {
+                if (line.startsWith("MSG "))
+                    line = line.substring(line.indexOf(' ', 4) + 1);
+                int i = line.indexOf(": LAT ");
+                if (i > 0 && !line.startsWith(user + ":"))
+                    Latencies.record(System.nanoTime() - Long.parseLong(line.substring(i + 6)));
+            }
+        }
+
+        synchronized void send(String msg) {
+            out.println(msg);
+        }
+
+        void close() {
+            closed = true;
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Starts a ChatServer in a scratch directory holding a copy of the server keystore. */
+    static Process startServer(String mode, int port, String... jvmArgs) throws IOException, InterruptedException {
+        return startServer(List.of(), mode, port, jvmArgs);
+    }
+
+    /** {@code prefix}: a wrapper command for the server JVM, e.g. taskset to pin it to a CPU. */
+    static Process startServer(List<String> prefix, String mode, int port, String... jvmArgs)
+            throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("transport-bench");
+        Path certs = Files.createDirectory(dir.resolve("certs"));
+        Files.copy(Path.of("certs/serverkeystore.jks"), certs.resolve("serverkeystore.jks"));
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String cp = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(p -> Path.of(p).toAbsolutePath().toString())
+                .reduce((a, b) -> a + File.pathSeparator + b).orElse(".");
+        List<String> cmd = new ArrayList<>(prefix);
+        cmd.addAll(List.of(java, "-Dchat.transport=" + mode));
+        cmd.addAll(List.of(jvmArgs));
+        cmd.addAll(List.of("-cp", cp, "ChatServer", String.valueOf(port)));
+        Process p = new ProcessBuilder(cmd)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .start();
+        BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line = r.readLine();
+        System.out.println("server: " + line);
+        Thread.startVirtualThread(() -> {
+            try {
+                while (r.readLine() != null)
+                    ;
+            } catch (IOException ignored) {
+            }
+        });
+        return p;
+    }
+
+    /** {RSS bytes, live heap bytes} of the server process. */
+    private static long[] serverMemory(long pid) throws IOException, InterruptedException {
+        String jcmd = Path.of(ProcessHandle.current().info().command().orElse("java")).resolveSibling("jcmd").toString();
+        long heap = 0;
+        // the class histogram forces a full GC and ends with "Total <instances> <bytes>"
+        for (String l : run(jcmd, String.valueOf(pid), "GC.class_histogram")) {
+            if (l.startsWith("Total")) {
+                String[] f = l.trim().split("\\s+");
+                heap = Long.parseLong(f[2]);
+            }
+        }
+        long rss = 0;
+        for (String l : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+            if (l.startsWith("VmRSS:"))
+                rss = Long.parseLong(l.replaceAll("[^0-9]", "")) * 1024;
+        }
+        return new long[] { rss, heap };
+    }
+
+    private static List<String> run(String... cmd) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        List<String> lines = new BufferedReader(new InputStreamReader(p.getInputStream())).lines().toList();
+        p.waitFor();
+        return lines;
+    }
+
+    static SSLContext clientContext() throws Exception {
+        char[] pass = "changeit".toCharArray();
+        KeyStore ts = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream("certs/clienttruststore.jks")) {
+            ts.load(fis, pass);
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ts);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+}
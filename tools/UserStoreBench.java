@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registration throughput and cold-start load time of UserStore, against the
+ * previous store that rewrote the whole users file on every registration.
+ *
+ * Usage: java -cp build UserStoreBench [users] [legacyUsers]
+ */
+public class UserStoreBench {
+    /** The pre-journal implementation, kept here only as a baseline. */
+    static class LegacyUsers {
+        private final Map<String, String> users = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final File file;
+
+        LegacyUsers(File file) {
+            this.file = file;
+        }
+
+        boolean register(String u, String p) {
+            lock.lock();
+            try {
+                if (users.containsKey(u))
+                    return false;
+                users.put(u, p);
+                try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+                    users.forEach((k, v) -> pw.println(k + ":" + v));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        static Map<String, String> load(File f) throws IOException {
+            Map<String, String> m = new HashMap<>();
+            try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] p = line.split(":", 2);
+                    if (p.length == 2)
+                        m.put(p[0], p[1]);
+                }
+            }
+            return m;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int legacyN = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        Path dir = Files.createTempDirectory("userstore-bench");
+        Path snap = dir.resolve("users.txt");
+        Path journal = dir.resolve("users.journal");
+
+        LegacyUsers legacy = new LegacyUsers(dir.resolve("legacy.txt").toFile());
+        long t0 = System.nanoTime();
+        for (int i = 0; i < legacyN; i++)
+            legacy.register("user" + i, "pw" + i);
+        double legacyUs = (System.nanoTime() - t0) / 1e3 / legacyN;
+        System.out.printf("legacy     register %,d users: %8.1f us/op (grows with user count)%n", legacyN, legacyUs);
+
+        UserStore store = new UserStore(snap, journal);
+        t0 = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            store.register("user" + i, "pw" + i);
+        long regNanos = System.nanoTime() - t0;
+        store.close();
+        long durableNanos = System.nanoTime() - t0;
+        System.out.printf("journal    register %,d users: %8.2f us/op, %d ms until synced%n",
+                n, regNanos / 1e3 / n, durableNanos / 1_000_000);
+        System.out.printf("on disk: snapshot %,d bytes, journal %,d bytes%n",
+                Files.exists(snap) ? Files.size(snap) : 0, Files.size(journal));
+
+        // cold start: concatenate both files for the legacy loader so it parses the same data
+        Path legacyFile = dir.resolve("legacy-load.txt");
+        try (OutputStream out = Files.newOutputStream(legacyFile)) {
+            if (Files.exists(snap))
+                Files.copy(snap, out);
+            Files.copy(journal, out);
+        }
+        for (int pass = 0; pass < 3; pass++) {
+            t0 = System.nanoTime();
+            int loaded = LegacyUsers.load(legacyFile.toFile()).size();
+            long legacyLoad = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            UserStore cold = new UserStore(snap, journal);
+            long load = System.nanoTime() - t0;
+            int size = cold.size();
+            cold.close();
+            if (pass == 2) {
+                System.out.printf("cold load  legacy reader %,d users in %d ms%n", loaded, legacyLoad / 1_000_000);
+                System.out.printf("cold load  UserStore     %,d users in %d ms%n", size, load / 1_000_000);
+            }
+        }
+    }
+}